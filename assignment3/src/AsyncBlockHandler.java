@@ -0,0 +1,109 @@
+import java.lang.reflect.Method;
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking front of a {@code BlockHandler}: every call returns a {@code CompletableFuture}
+ * right away and runs on its own virtual thread where the runtime has them (Java 21+). On older
+ * runtimes requests queue for a small pool of platform threads instead. Either way the number of
+ * requests in flight is not bounded by a thread pool size the caller has to pick.
+ *
+ * <p>
+ * Blocks are added concurrently ({@code BlockChain.addBlock} only locks around the tree changes).
+ * Transactions and block creation go through the handler's block template, which is not thread
+ * safe, so they take turns under a lock. It is only held for the template work: a new block is
+ * taken out of the template under it and mined after it is released, so transactions keep coming
+ * in during a proof-of-work search. The block goes on the block its template was built on.
+ *
+ * <p>
+ * The template lock and the miner's are {@code ReentrantLock}s, which a virtual thread waits for
+ * without pinning its carrier; they can be held for long. The chain and the template's reads of
+ * the mempool still use {@code synchronized}, which may pin a virtual thread, but only for the
+ * short tree, mempool and template updates (never while validating or mining).
+ */
+public class AsyncBlockHandler {
+
+	private final BlockHandler blockHandler;
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final ReentrantLock templateLock = new ReentrantLock();
+
+	public AsyncBlockHandler(BlockHandler blockHandler) {
+		this.blockHandler = blockHandler;
+		ExecutorService virtual = newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		this.executor = virtual != null ? virtual : newPlatformExecutor();
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor(), looked up by reflection so this still builds and
+	// runs on Java 8. Null where there is no such method
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	// The work is mostly CPU bound, so about a thread per core; requests beyond that queue
+	private static ExecutorService newPlatformExecutor() {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory threads = r -> {
+			Thread t = new Thread(r, "async-block-handler-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		return Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), threads);
+	}
+
+	/** @return true if requests run on virtual threads, false if on the platform thread fallback */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public BlockHandler getBlockHandler() {
+		return blockHandler;
+	}
+
+	/** @return completes with what {@code BlockHandler.processBlock} returns */
+	public CompletableFuture<Boolean> processBlock(Block block) {
+		return CompletableFuture.supplyAsync(() -> blockHandler.processBlock(block), executor);
+	}
+
+	/** @return completes once {@code tx} has been handed to the mempool and block template */
+	public CompletableFuture<Void> processTx(Transaction tx) {
+		return CompletableFuture.runAsync(() -> {
+			templateLock.lock();
+			try {
+				blockHandler.processTx(tx);
+			} finally {
+				templateLock.unlock();
+			}
+		}, executor);
+	}
+
+	/** @return completes with what {@code BlockHandler.createBlock} returns */
+	public CompletableFuture<Block> createBlock(PublicKey myAddress) {
+		return CompletableFuture.supplyAsync(() -> {
+			Block block;
+			templateLock.lock();
+			try {
+				block = blockHandler.getTemplate().newBlock(myAddress);
+			} finally {
+				templateLock.unlock();
+			}
+			return blockHandler.mineBlock(block);
+		}, executor);
+	}
+
+	/** Lets requests already submitted finish, accepts no more */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
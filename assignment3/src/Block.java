@@ -3,21 +3,39 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Block {
 
     public static final double COINBASE = 25;
+    public static final int NONCE_LENGTH = 4;
 
     private byte[] hash;
     private byte[] prevBlockHash;
+    /** varied by mining until the hash meets the difficulty target */
+    private int nonce;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** over the coinbase hash followed by the transaction hashes, kept up to date by addTransaction */
+    private MerkleTree merkleTree;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.append(coinbase.getHash());
+    }
+
+    public int getNonce() {
+        return nonce;
+    }
+
+    /** call {@code finalize()} afterwards, the hash covers the nonce */
+    public void setNonce(int nonce) {
+        this.nonce = nonce;
     }
 
     public Transaction getCoinbase() {
@@ -42,32 +60,109 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (merkleTree != null && tx.getHash() != null)
+            merkleTree.append(tx.getHash());
+        else
+            merkleTree = null;
     }
 
-    public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
+    // Rebuilt if transactions were added without a hash, or directly through getTransactions()
+    private MerkleTree getMerkleTree() {
+        if (merkleTree == null || merkleTree.size() != txs.size() + 1) {
+            List<byte[]> leaves = new ArrayList<byte[]>(txs.size() + 1);
+            leaves.add(coinbase.getHash());
+            for (Transaction tx : txs)
+                leaves.add(tx.getHash());
+            merkleTree = MerkleTree.build(leaves);
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
+        return merkleTree;
+    }
+
+    /** @return the merkle root over the coinbase and transaction hashes, which the block hash commits to */
+    public byte[] getMerkleRoot() {
+        return getMerkleTree().getRoot();
+    }
+
+    /**
+     * @return true if every transaction (coinbase included) has the hash of its contents. The merkle
+     *         tree is over the stored hashes, so only then does the block hash commit to the contents
+     */
+    public boolean hasValidTxHashes() {
+        if (!Arrays.equals(coinbase.getHash(), coinbase.computeHash()))
+            return false;
+        for (Transaction tx : txs)
+            if (tx.getHash() == null || !Arrays.equals(tx.getHash(), tx.computeHash()))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return true if the transaction list repeats hashes in a way that leaves the merkle root (and
+     *         so the block hash) unchanged, e.g. with the last transaction twice. Such a block is
+     *         invalid whatever it shares a hash with
+     */
+    public boolean isMutated() {
+        return getMerkleTree().isMutated();
+    }
+
+    /**
+     * @return the inclusion proof of transaction {@code index} (as in {@code getTransaction}),
+     *         check it with {@code MerkleTree.verifyProof(txHash, index + 1, proof, merkleRoot)}
+     */
+    public List<byte[]> getMerkleProof(int index) {
+        return getMerkleTree().getProof(index + 1);
+    }
+
+    /** @return the block header: previous block hash, merkle root and the nonce (big endian) */
+    public byte[] getRawBlock() {
+        byte[] prefix = getHeaderPrefix();
+        byte[] raw = new byte[prefix.length + NONCE_LENGTH];
+        System.arraycopy(prefix, 0, raw, 0, prefix.length);
+        putNonce(raw, prefix.length, nonce);
         return raw;
     }
 
-    public void finalize() {
+    /** @return the header up to the nonce, which is all a miner needs to hash each nonce it tries */
+    public byte[] getHeaderPrefix() {
+        byte[] merkleRoot = getMerkleRoot();
+        int prevLength = prevBlockHash == null ? 0 : prevBlockHash.length;
+        byte[] prefix = new byte[prevLength + merkleRoot.length];
+        if (prevBlockHash != null)
+            System.arraycopy(prevBlockHash, 0, prefix, 0, prevLength);
+        System.arraycopy(merkleRoot, 0, prefix, prevLength, merkleRoot.length);
+        return prefix;
+    }
+
+    /** writes {@code nonce} at {@code offset} of a header, as {@code getRawBlock} does */
+    public static void putNonce(byte[] header, int offset, int nonce) {
+        header[offset] = (byte) (nonce >>> 24);
+        header[offset + 1] = (byte) (nonce >>> 16);
+        header[offset + 2] = (byte) (nonce >>> 8);
+        header[offset + 3] = (byte) nonce;
+    }
+
+    /** @return true if {@code hash} starts with at least {@code difficulty} zero bits */
+    public static boolean meetsTarget(byte[] hash, int difficulty) {
+        int i = 0;
+        for (; difficulty >= 8; difficulty -= 8, i++)
+            if (i >= hash.length || hash[i] != 0)
+                return false;
+        return difficulty == 0 || (i < hash.length && (hash[i] & 0xff) >>> (8 - difficulty) == 0);
+    }
+
+    /** @return the hash of the block as it is now, without storing it; compare with getHash() to verify */
+    public byte[] computeHash() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update(getRawBlock());
-            hash = md.digest();
+            return md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
+            return null;
         }
     }
+
+    public void finalize() {
+        hash = computeHash();
+    }
 }
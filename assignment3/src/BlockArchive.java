@@ -0,0 +1,7 @@
+
+/** Receives the blocks {@code BlockChain} prunes, e.g. to keep history on disk */
+public interface BlockArchive {
+
+	/** Called once for every block that is dropped from memory, {@code height} is its depth in the tree */
+	void archive(Block block, int height);
+}
@@ -1,8 +1,27 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
@@ -11,113 +30,285 @@ import java.util.Map;
 
 public class BlockChain {
 	public static final int CUT_OFF_AGE = 10;
+	// Besides the tip (and the roots left by pruning) a full UTXOPool is only kept at these depths
+	public static final int POOL_CHECKPOINT_INTERVAL = 5;
 
+	private static final int SNAPSHOT_MAGIC = 0x534e5032;  // "SNP2", blocks with a nonce
 
-	// Blockdata references are stored in a tree (for depth, age etc) AND a map (for easy lookup) 
 
-	TreeNode<BlockData> blockChain;
-	Map<String,TreeNode<BlockData>> treeLookup = new HashMap<String,TreeNode<BlockData>>();
+	// Blockdata references are stored in a tree (for depth, age etc) that is also the lookup by hash
+
+	BlockIndex<BlockData> blockIndex = new BlockIndex<BlockData>();
+	// Oldest block kept on the main chain
+	int blockChain;
+	// Deepest node, the oldest one wins a tie. Updated on every insert instead of searching the tree.
+	// Pruning and the age check go by it, even while its signatures were skipped
+	int maxHeightNode;
+	// maxHeightNode as of the last time it was verified in full, NONE once pruned
+	int publishedNode;
 	TransactionPool transactionPool = new TransactionPool();
+	// publishedNode as readers see it, kept after it is pruned. Everything else is guarded by the chain's lock
+	volatile ChainState chainState;
+
+	// All nodes at minDepth, i.e. those left without a parent by pruning
+	List<Integer> roots = new ArrayList<Integer>();
+	int minDepth = 1;
+	BlockArchive blockArchive = null;
+	// Every accepted block is appended here, if set
+	BlockStore blockStore = null;
+	// Written every snapshotInterval tips, if set
+	File snapshotFile = null;
+	int snapshotInterval;
+
+	OrphanBlockPool orphanBlocks = new OrphanBlockPool();
+	SignatureCache signatureCache = new SignatureCache();
+	// Materialized pools other than the tip's are held to poolBudget UTXO entries in total, least
+	// recently used first out. Roots have no parent to be rebuilt from, they are spilled to spillDir
+	long poolBudget = Long.MAX_VALUE;
+	File spillDir = null;
+	// Every materialized pool with its size, least recently used first
+	LinkedHashMap<Integer, Integer> residentPools = new LinkedHashMap<Integer, Integer>(16, 0.75f, true);
+	long residentEntries = 0;
+	long poolFaults = 0;
+	// Set by close, spilled pools are gone then
+	volatile boolean closed = false;
+
+	// Blocks up to assumeValidHeight are connected without signature checks until the block
+	// assumeValidHash is, on trust that they are its ancestors
+	byte assumeValidHash[] = null;
+	int assumeValidHeight;
+	boolean assumeValidConnected = false;
 
+	// Leading zero bits every block hash after the genesis block needs, 0 for no proof of work
+	volatile int difficulty = 0;
+
+	// Runs the signature and amount checks of a block's transactions in parallel
+	volatile ExecutorService validationExecutor = ForkJoinPool.commonPool();
+
+	// Every block keeps its diff against the parent, only some keep the resulting pool as well
 	private class BlockData {
 		Block block;
-		UTXOPool utxoPool; 
-		public BlockData(Block block, UTXOPool utxoPool) {
+		UTXODiff diff;
+		UTXOPool utxoPool; // null unless materialized
+		File spilled; // root pool written to disk, if set
+		boolean signaturesSkipped; // connected on assume-valid trust, not (yet) known to be an ancestor of that block
+		public BlockData(Block block, UTXODiff diff) {
 			super();
 			this.block = block;
-			this.utxoPool = utxoPool;
+			this.diff = diff;
 		}
 		public Block getBlock() {
 			return block;
 		}
-		public UTXOPool getUtxoPool() {
-			return utxoPool;
+		public UTXODiff getDiff() {
+			return diff;
 		}
 	}; 
 
-	public class TreeNode<T> {
-		private T data = null;
-		private int depth = 1;
-		private List<TreeNode<T>> children = new ArrayList<>();
-		private TreeNode<T> parent = null;
 
-		public TreeNode(T data) {
-			this.data = data;
-		}
+	/**
+	 * @return the current tip, height and tip pool as one consistent snapshot. Does not lock, so it
+	 *         does not wait for blocks being added
+	 */
+	public ChainState getChainState() {
+		return chainState;
+	}
 
-		public TreeNode<T> addChild(T data) {
-			TreeNode<T> newChild = new TreeNode<T>(data);
-			newChild.setParent(this);
-			newChild.depth = this.depth + 1;
-			children.add(newChild);
-			return newChild;
-		}
+	/** Get the maximum height block */
+	public Block getMaxHeightBlock() {
+		return chainState.getTip();
+	}
 
-		public List<TreeNode<T>> getChildren() {
-			return children;
-		}
+	/** Get the UTXOPool for mining a new block on top of max height block */
+	public UTXOPool getMaxHeightUTXOPool() {
+		return chainState.getUtxoPool();
+	}
 
-		public T getData() {
-			return data;
+	/**
+	 * @return the block at {@code height} (genesis being 1) on the branch of the current tip, or null
+	 *         if that height is pruned or beyond the tip
+	 */
+	public synchronized Block getBlockAtHeight(int height) {
+		if (publishedNode == BlockIndex.NONE) {
+			return null;
 		}
+		int node = blockIndex.getAncestor(publishedNode, height);
+		return node == BlockIndex.NONE ? null : blockIndex.getData(node).getBlock();
+	}
+
+	// Called with the lock held whenever publishedNode changes; it keeps its pool materialized
+	private void publishChainState() {
+		chainState = new ChainState(blockIndex.getData(publishedNode).getBlock(), blockIndex.getDepth(publishedNode), getUtxoPool(publishedNode));
+	}
 
-		public int getDepth() {
-			return depth;
+	// The pool after node's block: its own if materialized, otherwise a fresh one built by applying
+	// the diffs down from the nearest materialized ancestor. Do not modify the result.
+	private UTXOPool getUtxoPool(int node) {
+		checkOpen();
+		List<BlockData> path = new ArrayList<BlockData>();
+		int ancestor = node;
+		while (blockIndex.getData(ancestor).utxoPool == null && blockIndex.getData(ancestor).spilled == null) {
+			path.add(blockIndex.getData(ancestor));
+			ancestor = blockIndex.getParent(ancestor);  // roots are always materialized or spilled
+		}
+		UTXOPool base = residentPool(ancestor);
+		if (path.isEmpty()) {
+			return base;
 		}
+		UTXOPool utxoPool = new UTXOPool(base);
+		for (int i = path.size() - 1;i >= 0;i--) {
+			path.get(i).getDiff().applyTo(utxoPool);
+		}
+		return utxoPool;
+	}
 
-		public void setData(T data) {
-			this.data = data;
+	// The materialized pool of node, read back from disk if it was spilled
+	private UTXOPool residentPool(int node) {
+		BlockData data = blockIndex.getData(node);
+		if (data.utxoPool != null) {
+			residentPools.get(node);  // most recently used now
+			return data.utxoPool;
 		}
+		UTXOPool utxoPool;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(data.spilled)))) {
+			utxoPool = Serialization.readPool(in);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read spilled pool " + data.spilled, e);
+		}
+		poolFaults++;
+		setPool(node, utxoPool);  // the budget is enforced once the block is in, not in the middle of pruning
+		deleteSpilled(data);  // written again if the pool is evicted again
+		return utxoPool;
+	}
 
-		private void setParent(TreeNode<T> parent) {
-			this.parent = parent;
+	private void deleteSpilled(BlockData data) {
+		if (data.spilled != null && !data.spilled.delete()) {
+			System.err.println("Cannot delete spilled pool " + data.spilled);
 		}
+		data.spilled = null;
+	}
 
-		public TreeNode<T> getParent() {
-			return parent;
+	// The only place utxoPool is set, keeps the accounting for the pool budget
+	private void setPool(int node, UTXOPool utxoPool) {
+		Integer size = residentPools.remove(node);
+		if (size != null) {
+			residentEntries -= size;
+		}
+		blockIndex.getData(node).utxoPool = utxoPool;
+		if (utxoPool != null) {
+			residentPools.put(node, utxoPool.size());
+			residentEntries += utxoPool.size();
 		}
+	}
 
-		TreeNode<T> getDeepest()
-		{
-			if (this.getChildren().isEmpty()) {
-				return this;
+	// Takes the least recently used pools out of memory until the budget holds. A checkpoint is just
+	// dropped (its diffs rebuild it), a root is spilled, the tips' pools always stay
+	private void enforcePoolBudget() {
+		Iterator<Map.Entry<Integer, Integer>> lru = residentPools.entrySet().iterator();
+		while (residentEntries > poolBudget && lru.hasNext()) {
+			Map.Entry<Integer, Integer> e = lru.next();
+			int node = e.getKey();
+			BlockData data = blockIndex.getData(node);
+			if (node == maxHeightNode || node == publishedNode) {
+				continue;
 			}
-			List<TreeNode<T>> candidates = new ArrayList<TreeNode<T>>();
-			Iterator<TreeNode<T>> iter =  this.getChildren().iterator();
-			while (iter.hasNext()) {
-				TreeNode<T> next = iter.next();
-				candidates.add(next.getDeepest());        		
+			if (blockIndex.getParent(node) == BlockIndex.NONE && data.spilled == null) {
+				if (spillDir == null) {
+					continue;
+				}
+				try {
+					File file = File.createTempFile("pool-", ".dat", spillDir);
+					try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+						Serialization.writePool(out, data.utxoPool);
+					}
+					data.spilled = file;  // pools never change, the file stays good until it is read back
+				} catch (IOException x) {
+					x.printStackTrace(System.err);
+					continue;
+				}
 			}
+			residentEntries -= e.getValue();
+			data.utxoPool = null;
+			lru.remove();
+		}
+	}
 
-			TreeNode<T> retVal = null;
+	/**
+	 * Holds the UTXO pools kept for blocks other than the tip to {@code maxEntries} entries in total.
+	 * Least recently used pools are reduced to their diffs, or for the roots of the tree (which have
+	 * nothing to be rebuilt from) written to {@code spillDir}, and brought back when a block extends
+	 * their branch. With a null {@code spillDir} roots always stay in memory.
+	 */
+	public synchronized void setPoolBudget(long maxEntries, File spillDir) {
+		this.poolBudget = maxEntries;
+		this.spillDir = spillDir;
+		enforcePoolBudget();
+	}
 
-			for (TreeNode<T> t:candidates) {
-				if (retVal == null) {
-					retVal = t;
-				} else {
-					if (t.getDepth() > retVal.getDepth()) {
-						retVal = t;        				
-					}
-				}        		
-			}
-			return retVal;
+	/**
+	 * Deletes the files of spilled pools. The chain cannot be used afterwards, adding a block throws
+	 * {@code IllegalStateException}; call it once the chain is discarded when a pool budget with a
+	 * spill directory was set. The block store, if any, is left open.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (int root:roots) {
+			deleteSpilled(blockIndex.getData(root));
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Block chain is closed");
 		}
 	}
 
+	/** Resident against spilled fork state */
+	public static class PoolStats {
+		public final int residentPools;
+		public final long residentEntries;
+		public final int spilledPools;
+		public final long spilledBytes;
+		public final long faults;
 
-	/** Get the maximum height block */
-	public Block getMaxHeightBlock() {
-		TreeNode<BlockData> b = blockChain.getDeepest();
-		return b.getData().getBlock();
+		PoolStats(int residentPools, long residentEntries, int spilledPools, long spilledBytes, long faults) {
+			this.residentPools = residentPools;
+			this.residentEntries = residentEntries;
+			this.spilledPools = spilledPools;
+			this.spilledBytes = spilledBytes;
+			this.faults = faults;
+		}
+
+		public String toString() {
+			return "resident=" + residentPools + " pools/" + residentEntries + " entries spilled=" + spilledPools + " pools/"
+					+ spilledBytes + " bytes faults=" + faults;
+		}
 	}
 
-	/** Get the UTXOPool for mining a new block on top of max height block */
-	public UTXOPool getMaxHeightUTXOPool() {
-		TreeNode<BlockData> b = blockChain.getDeepest();
-		return b.getData().getUtxoPool();
+	/** @return how many pools (and UTXO entries) are in memory, how many are only on disk */
+	public synchronized PoolStats getPoolStats() {
+		int spilledPools = 0;
+		long spilledBytes = 0;
+		for (int root:roots) {
+			BlockData data = blockIndex.getData(root);
+			if (data.utxoPool == null && data.spilled != null) {
+				spilledPools++;
+				spilledBytes += data.spilled.length();
+			}
+		}
+		return new PoolStats(residentPools.size(), residentEntries, spilledPools, spilledBytes, poolFaults);
+	}
+
+	private boolean keepsPool(int node) {
+		return node == maxHeightNode || node == publishedNode || blockIndex.getParent(node) == BlockIndex.NONE
+				|| blockIndex.getDepth(node) % POOL_CHECKPOINT_INTERVAL == 0;
 	}
 
-	/** Get the transaction pool to mine a new block */
+	/**
+	 * Get the transaction pool to mine a new block. It is guarded by the chain's lock, which
+	 * {@code addBlock} holds while it updates the pool: hold it to use the pool while blocks may be
+	 * added by other threads
+	 */
 	public TransactionPool getTransactionPool() {
 		return transactionPool;
 	}
@@ -133,16 +324,6 @@ public class BlockChain {
 	}
 
 
-	// make sure hashes are formatted identically 
-	private String formatBlockHash(byte hash[]) 
-	{
-		String retVal = "";
-		for (int i = 0;i < hash.length;i++) {
-			retVal += String.format("%02x", hash[i]);
-		}
-		return retVal;
-	}
-
 	// Handling coinbase is essential, even though it is barely mentioned in the assignment 
 	private void handleCoinbase(Block block, UTXOPool utxoPool)
 	{
@@ -167,14 +348,291 @@ public class BlockChain {
 
 		Transaction txs[] = makeTransactionsArray(genesisBlock);
 
-		txHandler.handleTxs(txs);    	
+		txs = txHandler.handleTxs(txs);    	
 
 		handleCoinbase(genesisBlock, txHandler.getUTXOPool());
 
-		BlockData rootData = new BlockData(genesisBlock,txHandler.getUTXOPool());
-		blockChain = new TreeNode<BlockData>(rootData);
-		String genesisHash = formatBlockHash(genesisBlock.getHash());
-		treeLookup.put(genesisHash,blockChain);
+		UTXODiff diff = UTXODiff.of(txs, genesisBlock.getCoinbase(), new UTXOPool());
+		BlockData rootData = new BlockData(genesisBlock, diff);
+		blockChain = blockIndex.add(genesisBlock.getHash(), BlockIndex.NONE, rootData);
+		setPool(blockChain, txHandler.getUTXOPool());
+		maxHeightNode = blockChain;
+		publishedNode = blockChain;
+		roots.add(blockChain);
+		publishChainState();
+	}
+
+	// For loadSnapshot, which fills in everything
+	private BlockChain() {
+	}
+
+	/** Block transactions are validated on {@code executor}, null to validate on the calling thread */
+	public void setValidationExecutor(ExecutorService executor) {
+		this.validationExecutor = executor;
+	}
+
+	/**
+	 * Blocks added from now on need a hash (recomputed from the header, nonce included) starting with
+	 * {@code bits} zero bits. 0, the default, checks no proof of work.
+	 */
+	public void setDifficulty(int bits) {
+		if (bits < 0 || bits > 8 * BlockIndex.HASH_LENGTH) {
+			throw new IllegalArgumentException("Bad difficulty " + bits);
+		}
+		this.difficulty = bits;
+	}
+
+	/** @return leading zero bits a block hash needs, see setDifficulty */
+	public int getDifficulty() {
+		return difficulty;
+	}
+
+	/** Pruned blocks are handed to {@code blockArchive} before they are dropped, null to just drop them */
+	public synchronized void setBlockArchive(BlockArchive blockArchive) {
+		this.blockArchive = blockArchive;
+	}
+
+	/**
+	 * Accepted blocks are appended to {@code blockStore} from now on, null to stop. Blocks currently
+	 * held that the store lacks are appended right away, so set it before anything gets pruned to
+	 * keep the full history; {@code load} needs it. Blocks connected on assume-valid trust are only
+	 * appended once verified, or marked unverified if they are pruned before that.
+	 */
+	public synchronized void setBlockStore(BlockStore blockStore) {
+		this.blockStore = blockStore;
+		if (blockStore == null) {
+			return;
+		}
+		ArrayDeque<Integer> nodes = new ArrayDeque<Integer>(roots);  // parents before children
+		while (!nodes.isEmpty()) {
+			int node = nodes.poll();
+			if (blockIndex.getData(node).signaturesSkipped) {
+				continue;  // so are its descendants
+			}
+			store(blockIndex.getData(node).getBlock(), blockIndex.getDepth(node), true);
+			for (int child = blockIndex.getFirstChild(node);child != BlockIndex.NONE;child = blockIndex.getNextSibling(child)) {
+				nodes.add(child);
+			}
+		}
+	}
+
+	private void store(Block block, int height, boolean verified) {
+		if (blockStore != null) {
+			try {
+				blockStore.append(block, height, verified);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot store block", e);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds a block chain from the blocks in {@code blockStore}, which were validated when they
+	 * were stored: UTXO pools are built from the transactions without checking them again
+	 * (signatures in particular). Blocks stored unverified are checked in full, and dropped with
+	 * their descendants if they fail. The chain keeps appending to {@code blockStore}.
+	 *
+	 * @throws IllegalArgumentException if the store does not start at a genesis block, e.g. because
+	 *         it was set after blocks had been pruned. The UTXO pool before its first block is not
+	 *         stored, so the chain cannot be rebuilt from it
+	 */
+	public static BlockChain load(BlockStore blockStore) {
+		BlockChain chain = null;
+		for (Block block:blockStore.blocks()) {
+			if (chain == null) {
+				if (block.getPrevBlockHash() != null) {
+					throw new IllegalArgumentException("Block store does not start at a genesis block");
+				}
+				chain = new BlockChain(block);
+				continue;
+			}
+			int prevBlock = block.getPrevBlockHash() == null ? BlockIndex.NONE : chain.blockIndex.find(block.getPrevBlockHash());
+			if (prevBlock == BlockIndex.NONE) {
+				continue;  // on a branch that was pruned since, or below a block that failed
+			}
+			boolean verified;
+			try {
+				verified = blockStore.isVerified(block.getHash());
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read block store", e);
+			}
+			if (verified) {
+				chain.connectTrusted(block, prevBlock);
+			} else {
+				chain.connectBlock(block);
+			}
+		}
+		if (chain == null) {
+			throw new IllegalArgumentException("Empty block store");
+		}
+		chain.blockStore = blockStore;
+		return chain;
+	}
+
+	/**
+	 * Writes everything needed to resume without replaying the chain to {@code file}: the blocks
+	 * held (the last {@code CUT_OFF_AGE} levels and their forks) with their UTXO diffs, and the full
+	 * UTXO pool of the roots. Written aside and moved over {@code file}, followed by a CRC32. Blocks
+	 * whose signatures were skipped on assume-valid trust are left out until they are verified.
+	 *
+	 * @throws IllegalStateException if no verified tip is held, e.g. during an assume-valid sync
+	 */
+	public synchronized void saveSnapshot(File file) throws IOException {
+		if (publishedNode == BlockIndex.NONE) {
+			throw new IllegalStateException("No verified tip to snapshot");
+		}
+		List<Integer> nodes = new ArrayList<Integer>();  // parents before children
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>(roots);
+		while (!queue.isEmpty()) {
+			int node = queue.poll();
+			if (blockIndex.getData(node).signaturesSkipped) {
+				continue;  // so are its descendants
+			}
+			nodes.add(node);
+			for (int child = blockIndex.getFirstChild(node);child != BlockIndex.NONE;child = blockIndex.getNextSibling(child)) {
+				queue.add(child);
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (DataOutputStream raw = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(raw, crc));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(minDepth);
+			out.writeInt(nodes.size());
+			for (int node:nodes) {
+				int parent = blockIndex.getParent(node);
+				out.writeInt(parent == BlockIndex.NONE ? -1 : nodes.indexOf(parent));
+				out.writeInt(blockIndex.getDepth(node));
+				Serialization.writeBlock(out, blockIndex.getData(node).getBlock());
+				Serialization.writeDiff(out, blockIndex.getData(node).getDiff());
+				if (parent == BlockIndex.NONE) {
+					Serialization.writePool(out, residentPool(node));
+				}
+			}
+			out.writeInt(nodes.indexOf(publishedNode));
+			out.flush();
+			raw.writeLong(crc.getValue());
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes a snapshot to {@code file} whenever the tip reaches a depth divisible by
+	 * {@code interval}; null to stop. A failed write is reported but does not fail the block.
+	 */
+	public synchronized void setSnapshotFile(File file, int interval) {
+		if (file != null && interval <= 0) {
+			throw new IllegalArgumentException("Bad snapshot interval " + interval);
+		}
+		this.snapshotFile = file;
+		this.snapshotInterval = interval;
+	}
+
+	/**
+	 * Resumes a block chain from a snapshot written by {@code saveSnapshot}, without validating or
+	 * replaying anything older than the snapshot window. Takes time proportional to the window and
+	 * the root UTXO pool, not to the chain length.
+	 *
+	 * @throws IOException if the file cannot be read or fails its checksum
+	 */
+	public static BlockChain loadSnapshot(File file) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < 8) {
+			throw new IOException("Truncated snapshot " + file);
+		}
+		int end = buffer.limit() - 8;
+		CRC32 crc = new CRC32();
+		ByteBuffer body = buffer.duplicate();
+		body.limit(end);
+		crc.update(body);
+		if (crc.getValue() != buffer.getLong(end)) {
+			throw new IOException("Snapshot checksum mismatch " + file);
+		}
+
+		body = buffer.duplicate();
+		body.limit(end);
+		DataInputStream data = Serialization.input(body);
+		if (data.readInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("Not a snapshot " + file);
+		}
+		BlockChain chain = new BlockChain();
+		chain.minDepth = data.readInt();
+		int nodeCnt = data.readInt();
+		int ids[] = new int[nodeCnt];
+		for (int i = 0;i < nodeCnt;i++) {
+			int parent = data.readInt();
+			int depth = data.readInt();
+			Block block = Serialization.readBlock(data);
+			UTXODiff diff = Serialization.readDiff(data);
+			if (parent < 0) {
+				ids[i] = chain.blockIndex.addRoot(block.getHash(), depth, chain.new BlockData(block, diff));
+				chain.setPool(ids[i], Serialization.readPool(data));
+				chain.roots.add(ids[i]);
+			} else if (parent < i) {
+				ids[i] = chain.blockIndex.add(block.getHash(), ids[parent], chain.new BlockData(block, diff));
+			} else {
+				throw new IOException("Snapshot lists a child before its parent");
+			}
+		}
+		int tip = data.readInt();
+		if (tip < 0 || tip >= nodeCnt) {
+			throw new IOException("Bad tip in snapshot");
+		}
+		chain.maxHeightNode = ids[tip];
+		chain.publishedNode = ids[tip];
+		for (int id:ids) {
+			if (chain.keepsPool(id) && chain.blockIndex.getData(id).utxoPool == null) {
+				chain.setPool(id, chain.getUtxoPool(id));
+			}
+		}
+		int root = chain.maxHeightNode;
+		while (chain.blockIndex.getParent(root) != BlockIndex.NONE) {
+			root = chain.blockIndex.getParent(root);
+		}
+		chain.blockChain = root;
+		chain.publishChainState();
+		return chain;
+	}
+
+	// A block at depth d can only get children while d + 1 + CUT_OFF_AGE > max depth, anything older
+	// is dropped: block, UTXO pool, lookup entry and tree links. Only ever removes whole levels.
+	private void prune() {
+		int keepFrom = blockIndex.getDepth(maxHeightNode) - CUT_OFF_AGE;
+		for (;minDepth < keepFrom;minDepth++) {
+			List<Integer> newRoots = new ArrayList<Integer>();
+			for (int node:roots) {
+				for (int child = blockIndex.getFirstChild(node);child != BlockIndex.NONE;child = blockIndex.getNextSibling(child)) {
+					setPool(child, getUtxoPool(child));  // about to become a root
+					newRoots.add(child);
+				}
+				if (blockArchive != null) {
+					blockArchive.archive(blockIndex.getData(node).getBlock(), blockIndex.getDepth(node));
+				}
+				if (blockIndex.getData(node).signaturesSkipped) {
+					// Cannot be checked any more, the chain stands on it now. Kept for load to check
+					store(blockIndex.getData(node).getBlock(), blockIndex.getDepth(node), false);
+				}
+				if (node == publishedNode) {
+					publishedNode = BlockIndex.NONE;  // readers keep it until a verified tip replaces it
+				}
+				setPool(node, null);
+				deleteSpilled(blockIndex.getData(node));
+				blockIndex.remove(node);
+			}
+			roots = newRoots;
+		}
+
+		// The root is now the oldest block kept on the main chain
+		int root = maxHeightNode;
+		while (blockIndex.getParent(root) != BlockIndex.NONE) {
+			root = blockIndex.getParent(root);
+		}
+		blockChain = root;
 	}
 
 
@@ -188,60 +646,428 @@ public class BlockChain {
 	 * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
 	 * at height 2.
 	 * 
+	 * <p>
+	 * A block whose parent is unknown is kept as an orphan and added as soon as the parent is;
+	 * signatures checked before are then found in the signature cache.
+	 * 
+	 * <p>
+	 * May be called from several threads; their blocks' transactions are validated concurrently.
+	 * 
 	 * @return true if block is successfully added
 	 */
 
 	public boolean addBlock(Block block) {
-		if (block.getPrevBlockHash() == null) {
-			// System.err.println("Rejected due to genesis block added as regular block");
+		checkOpen();
+		if (!connectBlock(block)) {
 			return false;
-		} 
+		}
+		connectOrphans(block.getHash());
+		return true;
+	}
 
-		String prevHash = formatBlockHash(block.getPrevBlockHash());    	
+	// Connects the orphans waiting for the block with hash parentHash, then the ones waiting for
+	// those, and so on. Iterative, a long run of orphans does not grow the stack
+	private void connectOrphans(byte parentHash[]) {
+		ArrayDeque<byte[]> connected = new ArrayDeque<byte[]>();
+		connected.add(parentHash);
+		while (!connected.isEmpty()) {
+			byte hash[] = connected.poll();
+			List<Block> children;
+			synchronized (this) {
+				children = orphanBlocks.removeChildrenOf(hash);
+			}
+			for (Block orphan:children) {
+				if (connectBlock(orphan)) {
+					connected.add(orphan.getHash());
+				}
+			}
+		}
+	}
 
-		TreeNode<BlockData> prevBlock = treeLookup.get(prevHash);
+	/** @return the number of blocks waiting for their parent */
+	public synchronized int getOrphanCount() {
+		return orphanBlocks.size();
+	}
 
-		if (prevBlock == null) {
-			// System.err.println(Rejected due to no previous block = " + prevHash);
+	// Everything addBlock checks. The chain is only locked to find the parent and to link the block
+	// in, the transactions are validated in between, so blocks on different forks (or the same one)
+	// validate in parallel and readers are never held up by a validation
+	private boolean connectBlock(Block block) {
+		// Checked before anything is looked up or kept by its hash, which the block may share with a valid one
+		if (!block.hasValidTxHashes()) {
+			// System.err.println("Rejected because a transaction hash does not match its contents");
+			return false;
+		}
+		if (block.isMutated()) {
+			// System.err.println("Rejected because of a mutated merkle tree");
+			return false;
+		}
+		if (!hasProofOfWork(block)) {
+			// System.err.println("Rejected because the hash does not meet the difficulty target");
 			return false;
 		}
+		UTXOPool parentPool;
+		boolean skipSignatures;
+		synchronized (this) {
+			if (block.getPrevBlockHash() == null) {
+				// System.err.println("Rejected due to genesis block added as regular block");
+				return false;
+			}
+			int prevBlock = blockIndex.find(block.getPrevBlockHash());
+			if (prevBlock == BlockIndex.NONE) {
+				// Not added (yet), but kept until the parent connects. Only under the hash it really
+				// has, a block claiming another's hash must not take its slot
+				if (block.getHash() != null && Arrays.equals(block.getHash(), block.computeHash())) {
+					orphanBlocks.add(block);
+				}
+				return false;
+			}
+			if (!isConnectable(block, prevBlock)) {
+				return false;
+			}
+			skipSignatures = assumeValidHash != null && !assumeValidConnected
+					&& blockIndex.getDepth(prevBlock) + 1 <= assumeValidHeight;
+			if (!skipSignatures && blockIndex.getData(prevBlock).signaturesSkipped && !verifySkippedAncestors(prevBlock)) {
+				// System.err.println("Rejected because it extends blocks that were assumed valid and are not");
+				return false;
+			}
+			parentPool = getUtxoPool(prevBlock);  // never modified, safe to read unlocked
+		}
 
-		int prevBlockDepth = prevBlock.getDepth();
-		int thisBlockDepth = prevBlockDepth + 1;
+		TxHandler txHandler = new TxHandler(parentPool, signatureCache);
 
-		int chainDepth = blockChain.getDeepest().getDepth();
+		// The block fixes the order, so validate in that order rather than searching for one
+		Transaction txs[] = makeTransactionsArray(block);
+		if (!txHandler.handleBlockTxs(txs, validationExecutor, !skipSignatures)) {
+			// System.err.println("Rejected because all transactions were not valid");
+			return false;
+		}
 
-		if ((thisBlockDepth + CUT_OFF_AGE) <= chainDepth) {  // Should check for "age" also, but it does not seem necessary
-			// System.err.println("Rejected due to age = " + thisBlockDepth + " " + chainDepth);
+		handleCoinbase(block, txHandler.getUTXOPool());
+
+		UTXODiff diff = UTXODiff.of(txs, block.getCoinbase(), parentPool);
+
+		synchronized (this) {
+			// Meanwhile the parent may have been pruned, the block added by another thread or the tip
+			// moved too far. The parent is looked up again, its id may have been reused
+			int prevBlock = blockIndex.find(block.getPrevBlockHash());
+			if (prevBlock == BlockIndex.NONE || !isConnectable(block, prevBlock)) {
+				return false;
+			}
+			int thisNode = insertBlock(block, prevBlock, txs, diff, txHandler.getUTXOPool(), skipSignatures);
+			if (assumeValidHash != null && Arrays.equals(block.getHash(), assumeValidHash)) {
+				// Its ancestors were what we trusted, they need no more checking and may be published now
+				List<Integer> trusted = new ArrayList<Integer>();
+				for (int node = thisNode;node != BlockIndex.NONE && blockIndex.getData(node).signaturesSkipped;node = blockIndex.getParent(node)) {
+					trusted.add(node);
+				}
+				for (int i = trusted.size() - 1;i >= 0;i--) {
+					markVerified(trusted.get(i));
+				}
+				assumeValidConnected = true;
+				if (thisNode != maxHeightNode && blockIndex.getDepth(thisNode) == blockIndex.getDepth(maxHeightNode)
+						&& blockIndex.getData(maxHeightNode).signaturesSkipped) {
+					moveTip(thisNode);  // the tie goes to the verified block
+				} else {
+					publishTip();
+				}
+			}
+		}
+		return true;
+	}
+
+	// Checks the signatures that were skipped on node and its ancestors after all, they are being
+	// built on without leading to the assume-valid block. False if one is bad, or can no longer be
+	// checked because the parent pool was pruned
+	private boolean verifySkippedAncestors(int node) {
+		List<Integer> skipped = new ArrayList<Integer>();
+		for (int n = node;n != BlockIndex.NONE && blockIndex.getData(n).signaturesSkipped;n = blockIndex.getParent(n)) {
+			skipped.add(n);
+		}
+		for (int i = skipped.size() - 1;i >= 0;i--) {
+			int n = skipped.get(i);
+			if (blockIndex.getParent(n) == BlockIndex.NONE) {
+				return false;
+			}
+			TxHandler txHandler = new TxHandler(getUtxoPool(blockIndex.getParent(n)), signatureCache);
+			if (!txHandler.handleBlockTxs(makeTransactionsArray(blockIndex.getData(n).getBlock()), validationExecutor, true)) {
+				return false;
+			}
+			markVerified(n);
+		}
+		publishTip();
+		return true;
+	}
+
+	// Clears the flag of a block whose signatures were skipped, its parent's must be clear already
+	private void markVerified(int node) {
+		blockIndex.getData(node).signaturesSkipped = false;
+		store(blockIndex.getData(node).getBlock(), blockIndex.getDepth(node), true);
+	}
+
+	/**
+	 * Trusts the block {@code hash} at depth {@code height} (genesis being 1), for a faster initial
+	 * sync: blocks up to that height are connected with every check but the signatures, until that
+	 * block itself connects. Whatever is later built on skipped blocks that do not lead to it has
+	 * their signatures checked then, and is rejected if one is bad. Null to check everything.
+	 * Skipped blocks do become the tip internally, so pruning keeps up with the sync, but are not
+	 * published: readers, the mempool, new blocks and snapshots stay on the last verified tip until
+	 * the trusted block connects. Nor are they stored until then, see {@code setBlockStore}.
+	 */
+	public synchronized void setAssumeValid(byte hash[], int height) {
+		this.assumeValidHash = hash == null ? null : hash.clone();
+		this.assumeValidHeight = height;
+		this.assumeValidConnected = hash != null && blockIndex.find(hash) != BlockIndex.NONE;
+	}
+
+	// Checked before the block is even kept as an orphan. The hash the block claims is not trusted,
+	// it is computed again
+	private boolean hasProofOfWork(Block block) {
+		int bits = difficulty;
+		if (bits == 0) {
+			return true;
+		}
+		byte hash[] = block.getHash();
+		return hash != null && Block.meetsTarget(hash, bits) && Arrays.equals(hash, block.computeHash());
+	}
+
+	// Checks that do not need the transactions: new block, and young enough for the tree
+	private boolean isConnectable(Block block, int prevBlock) {
+		if (block.getHash() == null || blockIndex.find(block.getHash()) != BlockIndex.NONE) {
+			// System.err.println("Rejected because the block is not finalized or already known");
 			return false;
-		} 
+		}
 
-		TxHandler txHandler = new TxHandler(prevBlock.getData().utxoPool);
+		int thisBlockDepth = blockIndex.getDepth(prevBlock) + 1;
+		int chainDepth = blockIndex.getDepth(maxHeightNode);
 
-		Transaction txs[] = makeTransactionsArray(block);
-		int txsLengthBefore = txs.length;
-		txs = txHandler.handleTxs(txs);
-		if (txs.length != txsLengthBefore) {
-			// System.err.println("Rejected because all transactions were not valid " + txs.length + " " + txsLengthBefore);
+		if ((thisBlockDepth + CUT_OFF_AGE) <= chainDepth) {  // Older parents are pruned anyway, this covers the rest
+			// System.err.println("Rejected due to age = " + thisBlockDepth + " " + chainDepth);
 			return false;
 		}
+		return true;
+	}
 
+	// For blocks validated before, e.g. read back from the block store: the pool is built from the
+	// transactions without checking them
+	private boolean connectTrusted(Block block, int prevBlock) {
+		if (!isConnectable(block, prevBlock)) {
+			return false;
+		}
+		UTXOPool parentPool = getUtxoPool(prevBlock);
+		Transaction txs[] = makeTransactionsArray(block);
+		UTXODiff diff = UTXODiff.of(txs, block.getCoinbase(), parentPool);
+		UTXOPool utxoPool = new UTXOPool(parentPool);
+		diff.applyTo(utxoPool);
+		insertBlock(block, prevBlock, txs, diff, utxoPool, false);
+		return true;
+	}
 
-		handleCoinbase(block, txHandler.getUTXOPool());
+	// Links a connected block into the tree and moves the tip if it is deeper. A block connected
+	// without its signatures checked is neither stored nor published until they are verified
+	private int insertBlock(Block block, int prevBlock, Transaction txs[], UTXODiff diff, UTXOPool utxoPool, boolean signaturesSkipped) {
+		int thisBlockDepth = blockIndex.getDepth(prevBlock) + 1;
+		int chainDepth = blockIndex.getDepth(maxHeightNode);
 
-		UTXOPool utxoPool = txHandler.getUTXOPool();
-		BlockData blockData = new BlockData(block, utxoPool);
-		TreeNode<BlockData> thisNode = prevBlock.addChild(blockData);
-		treeLookup.put(formatBlockHash(block.getHash()), thisNode);
+		if (!signaturesSkipped) {
+			store(block, thisBlockDepth, true);
+		}
+		BlockData blockData = new BlockData(block, diff);
+		blockData.signaturesSkipped = signaturesSkipped;
+		int thisNode = blockIndex.add(block.getHash(), prevBlock, blockData);
+		setPool(thisNode, utxoPool);
+		if (thisBlockDepth > chainDepth) {  // strictly deeper, so on a tie the older block stays
+			moveTip(thisNode);
+		} else if (!keepsPool(thisNode)) {
+			setPool(thisNode, null);
+		}
+		enforcePoolBudget();
+		return thisNode;
+	}
 
-		// This is the right place to erase block and UTXOpool outside CUT_OFF_AGE, however it does not seem necessary
+	private void moveTip(int newTip) {
+		int oldTip = maxHeightNode;
+		maxHeightNode = newTip;
+		if (!keepsPool(oldTip)) {
+			setPool(oldTip, null);
+		}
+		prune();
+		publishTip();
+	}
 
-		return true;
+	// Readers, the mempool and snapshots move to maxHeightNode once its signatures are all checked
+	private void publishTip() {
+		if (maxHeightNode == publishedNode || blockIndex.getData(maxHeightNode).signaturesSkipped) {
+			return;
+		}
+		int oldTip = publishedNode;
+		publishedNode = maxHeightNode;
+		publishChainState();
+		if (oldTip != BlockIndex.NONE && !keepsPool(oldTip)) {
+			setPool(oldTip, null);
+		}
+		updateTransactionPool(oldTip, publishedNode);
+		if (snapshotFile != null && blockIndex.getDepth(publishedNode) % snapshotInterval == 0) {
+			try {
+				saveSnapshot(snapshotFile);
+			} catch (IOException x) {
+				x.printStackTrace(System.err);
+			}
+		}
+	}
+
+	// The tip moved from oldTip to newTip, usually by one block, possibly to another branch. Blocks
+	// left behind give their transactions back to the mempool, and only pooled transactions that
+	// spend what the switch touched are checked again
+	private void updateTransactionPool(int oldTip, int newTip) {
+		if (oldTip == BlockIndex.NONE) {
+			revalidateTransactionPool(newTip);
+			return;
+		}
+		int fork = blockIndex.commonAncestor(oldTip, newTip);  // NONE if they are below different roots
+		List<Integer> disconnected = new ArrayList<Integer>();
+		for (int node = oldTip;node != fork && node != BlockIndex.NONE;node = blockIndex.getParent(node)) {
+			disconnected.add(node);
+		}
+		List<Integer> connected = new ArrayList<Integer>();
+		for (int node = newTip;node != fork && node != BlockIndex.NONE;node = blockIndex.getParent(node)) {
+			connected.add(node);
+		}
+
+		// Mined now, and whatever spends the same outputs never can be
+		for (int node:connected) {
+			for (Transaction tx:blockIndex.getData(node).getBlock().getTransactions()) {
+				transactionPool.removeConfirmed(tx);
+			}
+		}
+		if (disconnected.isEmpty()) {
+			return;
+		}
+
+		UTXOPool tipPool = getUtxoPool(newTip);
+		// Oldest block first, so parents go back in before their children
+		for (int i = disconnected.size() - 1;i >= 0;i--) {
+			for (Transaction tx:blockIndex.getData(disconnected.get(i)).getBlock().getTransactions()) {
+				if (transactionPool.getTransaction(tx.getHash()) == null && !tipPool.contains(new UTXO(tx.getHash(), 0))
+						&& isValidInPool(tx, tipPool)) {
+					transactionPool.addTransaction(tx, getFee(tx, tipPool));
+				}
+			}
+		}
+		// Outputs that only existed on the abandoned branch; whatever spends them now is checked again
+		for (int node:disconnected) {
+			for (UTXO utxo:blockIndex.getData(node).getDiff().getCreated().keySet()) {
+				if (getPooledOutput(utxo, tipPool) == null) {
+					for (byte spender[]:transactionPool.getSpenders(utxo)) {
+						transactionPool.removeWithDescendants(spender);
+					}
+				}
+			}
+		}
+	}
+
+	// The old tip was pruned before a verified one replaced it (an assume-valid sync), so what was
+	// mined in between is unknown: every pooled transaction is checked against the new tip's pool
+	private void revalidateTransactionPool(int newTip) {
+		UTXOPool tipPool = getUtxoPool(newTip);
+		for (Transaction tx:transactionPool.getTransactions()) {
+			if (transactionPool.getTransaction(tx.getHash()) != null
+					&& (tipPool.contains(new UTXO(tx.getHash(), 0)) || !isValidInPool(tx, tipPool))) {
+				transactionPool.removeWithDescendants(tx.getHash());
+			}
+		}
+	}
+
+	// The output in tipPool or created by a pooled transaction, null if neither
+	private Transaction.Output getPooledOutput(UTXO utxo, UTXOPool tipPool) {
+		Transaction.Output out = tipPool.getTxOutput(utxo);
+		if (out == null) {
+			Transaction parent = transactionPool.getTransaction(utxo.getTxHash());
+			if (parent != null && utxo.getIndex() >= 0 && utxo.getIndex() < parent.numOutputs()) {
+				out = parent.getOutput(utxo.getIndex());
+			}
+		}
+		return out;
+	}
 
+	// Whether tx could be mined on top of tipPool, after other pooled transactions if need be.
+	// Signatures verified before are found in the signature cache
+	private boolean isValidInPool(Transaction tx, UTXOPool tipPool) {
+		if (!TxHandler.isValidStateless(tx)) {
+			return false;
+		}
+		double inSum = 0.0;
+		for (int i = 0;i < tx.numInputs();i++) {
+			Transaction.Input in = tx.getInput(i);
+			UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+			Transaction.Output out = getPooledOutput(utxo, tipPool);
+			if (out == null || !signatureCache.verifySignature(tx, i, out.address)) {
+				return false;
+			}
+			for (byte spender[]:transactionPool.getSpenders(utxo)) {
+				if (!Arrays.equals(spender, tx.getHash())) {
+					return false;
+				}
+			}
+			inSum += out.value;
+		}
+		double outSum = 0.0;
+		for (Transaction.Output out:tx.getOutputs()) {
+			outSum += out.value;
+		}
+		return inSum >= outSum;
 	}
 
-	/** Add a transaction to the transaction pool */
-	public void addTransaction(Transaction tx) {
-		transactionPool.addTransaction(tx);
+	/**
+	 * Add a transaction to the transaction pool. If every output it spends is known (in the tip
+	 * pool or created by a pooled transaction) it has to be valid against them, signatures
+	 * included, and ranks by its fee. Otherwise it waits for its inputs at the lowest priority, so
+	 * an unverified transaction never pushes out another one.
+	 *
+	 * @return true if {@code tx} is in the pool afterwards
+	 */
+	public synchronized boolean addTransaction(Transaction tx) {
+		if (tx.numInputs() == 0 || tx.getHash() == null || !Arrays.equals(tx.getHash(), tx.computeHash())
+				|| !TxHandler.isValidStateless(tx)) {
+			return false;
+		}
+		UTXOPool tipPool = getMaxHeightUTXOPool();
+		if (tx.numOutputs() > 0 && tipPool.contains(new UTXO(tx.getHash(), 0))) {
+			return false;  // mined already
+		}
+		Transaction.Output spent[] = new Transaction.Output[tx.numInputs()];
+		for (int i = 0;i < tx.numInputs();i++) {
+			Transaction.Input in = tx.getInput(i);
+			spent[i] = getPooledOutput(new UTXO(in.prevTxHash, in.outputIndex), tipPool);
+			if (spent[i] == null) {
+				return transactionPool.addTransaction(tx, 0.0);
+			}
+		}
+		double fee = 0.0;
+		for (int i = 0;i < tx.numInputs();i++) {
+			if (!signatureCache.verifySignature(tx, i, spent[i].address)) {
+				return false;
+			}
+			fee += spent[i].value;
+		}
+		for (Transaction.Output out:tx.getOutputs()) {
+			fee -= out.value;
+		}
+		return fee >= 0 && transactionPool.addTransaction(tx, fee);
+	}
+
+	// Fee against the tip pool, outputs of other pooled transactions count too, unknown inputs as zero
+	private double getFee(Transaction tx, UTXOPool tipPool) {
+		double fee = 0.0;
+		for (Transaction.Input in:tx.getInputs()) {
+			Transaction.Output out = getPooledOutput(new UTXO(in.prevTxHash, in.outputIndex), tipPool);
+			if (out != null) {
+				fee += out.value;
+			}
+		}
+		for (Transaction.Output out:tx.getOutputs()) {
+			fee -= out.value;
+		}
+		return fee;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,230 @@
+// Simple timing of the block chain. Not a test, it just prints numbers.
+// Usage: java BlockChainBenchmark [blocks] [reportEvery] [forks] [threads]
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BlockChainBenchmark {
+
+	private final KeyPair keyPair;
+	private final PublicKey address;
+
+	public BlockChainBenchmark() throws NoSuchAlgorithmException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		keyGen.initialize(1024);
+		keyPair = keyGen.generateKeyPair();
+		address = keyPair.getPublic();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int reportEvery = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		BlockChainBenchmark b = new BlockChainBenchmark();
+		b.linearChain(blocks, reportEvery);
+
+		int forks = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		b.multiFork(forks, BlockChain.CUT_OFF_AGE - 2, 20, threads);  // warm up
+		b.multiFork(forks, BlockChain.CUT_OFF_AGE - 2, 20, 1);
+		b.multiFork(forks, BlockChain.CUT_OFF_AGE - 2, 20, threads);
+
+		b.assumeValidSync(200, 20);
+
+		b.mining(1, 16, 20);  // warm up
+		b.mining(1, 16, 20);
+		b.mining(threads, 16, 20);
+	}
+
+	private Block newBlock(byte prevHash[]) {
+		Block block = new Block(prevHash, address);
+		block.finalize();
+		return block;
+	}
+
+	// Grows one chain of coinbase only blocks and reports the average cost per addBlock
+	// and per tip query for every window of reportEvery blocks
+	public void linearChain(int blocks, int reportEvery) {
+		Block genesis = newBlock(null);
+		BlockChain chain = new BlockChain(genesis);
+		byte prevHash[] = genesis.getHash();
+
+		System.out.println("height\taddBlock(us)\tgetMaxHeightBlock(us)");
+		long addNanos = 0;
+		long tipNanos = 0;
+		for (int i = 1;i <= blocks;i++) {
+			Block block = newBlock(prevHash);
+			long start = System.nanoTime();
+			if (!chain.addBlock(block)) {
+				throw new AssertionError("Block rejected at height " + (i + 1));
+			}
+			long mid = System.nanoTime();
+			prevHash = chain.getMaxHeightBlock().getHash();
+			tipNanos += System.nanoTime() - mid;
+			addNanos += mid - start;
+
+			if (i % reportEvery == 0) {
+				System.out.println((i + 1) + "\t" + (addNanos / reportEvery / 1000.0) + "\t" + (tipNanos / reportEvery / 1000.0));
+				addNanos = 0;
+				tipNanos = 0;
+			}
+		}
+	}
+
+	// Spends all of tx's outputs one by one, each into a single output
+	private List<Transaction> spendEach(Transaction tx) throws GeneralSecurityException {
+		List<Transaction> txs = new ArrayList<Transaction>();
+		for (int i = 0;i < tx.numOutputs();i++) {
+			Transaction spend = new Transaction();
+			spend.addInput(tx.getHash(), i);
+			spend.addOutput(tx.getOutput(i).value, address);
+			spend.addSignature(sign(spend.getRawDataToSign(0)), 0);
+			spend.finalize();
+			txs.add(spend);
+		}
+		return txs;
+	}
+
+	private byte[] sign(byte message[]) throws GeneralSecurityException {
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keyPair.getPrivate());
+		signature.update(message);
+		return signature.sign();
+	}
+
+	// blocks blocks on top of genesis: the first splits its coinbase (less fee) into txsPerBlock
+	// outputs, every later one has txsPerBlock signed transactions passing those outputs on
+	private List<Block> buildBranch(Block genesis, int blocks, int txsPerBlock, double fee) throws GeneralSecurityException {
+		Transaction split = new Transaction();
+		split.addInput(genesis.getCoinbase().getHash(), 0);
+		for (int i = 0;i < txsPerBlock;i++) {
+			split.addOutput((Block.COINBASE - fee) / txsPerBlock, address);
+		}
+		split.addSignature(sign(split.getRawDataToSign(0)), 0);
+		split.finalize();
+
+		List<Block> branch = new ArrayList<Block>();
+		Block block = new Block(genesis.getHash(), address);
+		block.addTransaction(split);
+		block.finalize();
+		branch.add(block);
+		List<Transaction> lanes = new ArrayList<Transaction>();
+		lanes.add(split);
+		for (int i = 1;i < blocks;i++) {
+			List<Transaction> next = new ArrayList<Transaction>();
+			for (Transaction tx:lanes) {
+				next.addAll(spendEach(tx));
+			}
+			block = new Block(block.getHash(), address);
+			for (Transaction tx:next) {
+				block.addTransaction(tx);
+			}
+			block.finalize();
+			branch.add(block);
+			lanes = next;
+		}
+		return branch;
+	}
+
+	// Initial sync of one chain of blocks with txsPerBlock signed transactions each, with every
+	// signature checked and then with the last block as assume-valid checkpoint
+	public void assumeValidSync(int blocks, int txsPerBlock) throws Exception {
+		Block genesis = newBlock(null);
+		List<Block> chainBlocks = buildBranch(genesis, blocks, txsPerBlock, 0);
+		Block last = chainBlocks.get(chainBlocks.size() - 1);
+
+		for (int run = 0;run < 3;run++) {  // the first run warms up
+			boolean assumeValid = run == 2;
+			BlockChain chain = new BlockChain(genesis);
+			if (assumeValid) {
+				chain.setAssumeValid(last.getHash(), blocks + 1);
+			}
+			long start = System.nanoTime();
+			for (Block block:chainBlocks) {
+				if (!chain.addBlock(block)) {
+					throw new AssertionError("Block rejected");
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			if (run > 0) {
+				System.out.println("sync blocks=" + blocks + " txs/block=" + txsPerBlock + " assumeValid=" + assumeValid
+						+ "\t" + String.format("%.1f", blocks / (nanos / 1e9)) + " blocks/s");
+			}
+		}
+	}
+
+	// Mines blocks blocks at difficulty leading zero bits through BlockHandler.createBlock with
+	// threads mining threads, and reports the miner's hash rate
+	public void mining(int threads, int difficulty, int blocks) {
+		Block genesis = newBlock(null);
+		BlockChain chain = new BlockChain(genesis);
+		chain.setDifficulty(difficulty);
+		BlockHandler handler = new BlockHandler(chain);
+		Miner miner = new Miner(threads);
+		long hashes = 0;
+		long start = System.nanoTime();
+		for (int i = 0;i < blocks;i++) {
+			Block parent = chain.getMaxHeightBlock();
+			Block block = new Block(parent.getHash(), address);
+			if (!miner.mine(block, difficulty, () -> false) || !handler.processBlock(block)) {
+				throw new AssertionError("Block not mined");
+			}
+			hashes += miner.getLastHashes();
+		}
+		long nanos = System.nanoTime() - start;
+		miner.shutdown();
+		System.out.println("mining threads=" + threads + " difficulty=" + difficulty + "\t"
+				+ String.format("%.0f", hashes / (nanos / 1e9)) + " hashes/s\t" + String.format("%.1f", blocks / (nanos / 1e9)) + " blocks/s");
+	}
+
+	// Grows forks branches off the genesis block at the same time, blocksPerFork blocks each with
+	// txsPerBlock signed transactions, adding the blocks of different branches from threads threads
+	// (each branch in order). Validation inside a block is kept on the adding thread, so any speed up
+	// comes from connecting blocks of different branches concurrently
+	public void multiFork(int forks, int blocksPerFork, int txsPerBlock, int threads) throws Exception {
+		Block genesis = newBlock(null);
+		final BlockChain chain = new BlockChain(genesis);
+		chain.setValidationExecutor(null);
+
+		final List<List<Block>> branches = new ArrayList<List<Block>>();
+		for (int f = 0;f < forks;f++) {
+			// Distinct fee per branch, so no two branches share a transaction
+			branches.add(buildBranch(genesis, blocksPerFork, txsPerBlock, f * 0.001));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		List<Future<?>> done = new ArrayList<Future<?>>();
+		for (int t = 0;t < threads;t++) {
+			final int first = t;
+			final int step = threads;
+			done.add(executor.submit(() -> {
+				for (int f = first;f < branches.size();f += step) {
+					for (Block block:branches.get(f)) {
+						if (!chain.addBlock(block)) {
+							throw new AssertionError("Block rejected on branch " + f);
+						}
+					}
+				}
+			}));
+		}
+		for (Future<?> f:done) {
+			f.get();
+		}
+		long nanos = System.nanoTime() - start;
+		executor.shutdown();
+
+		int blocks = forks * blocksPerFork;
+		System.out.println("forks=" + forks + " blocks=" + blocks + " txs/block=" + txsPerBlock + " threads=" + threads
+				+ "\t" + String.format("%.1f", blocks / (nanos / 1e9)) + " blocks/s");
+	}
+}
@@ -1,8 +1,13 @@
 
 import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    private BlockPipeline pipeline;
+    private BlockTemplate template;
+    private Miner miner;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
@@ -20,20 +25,46 @@ public class BlockHandler {
         return blockChain.addBlock(block);
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * add {@code block} through the staged ingestion pipeline, for bursts of blocks. Blocks are
+     * added in the order they are submitted; {@code processBlock} and {@code createBlock} may
+     * add others meanwhile.
+     * 
+     * @return a future that yields what {@code processBlock} would have returned
+     */
+    public Future<Boolean> submitBlock(Block block) throws InterruptedException {
+        return getPipeline().submit(block);
+    }
+
+    /** @return the staged block pipeline (with its per stage statistics), started on first use */
+    public synchronized BlockPipeline getPipeline() {
+        if (pipeline == null)
+            pipeline = new BlockPipeline(blockChain);
+        return pipeline;
+    }
+
+    /**
+     * create a new {@code block} over the max height {@code block}, mined on all cores if the
+     * block chain has a difficulty target. Returns null if another block becomes the max height
+     * block while mining.
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
-        for (int i = 0; i < rTxs.length; i++)
-            current.addTransaction(rTxs[i]);
-
-        current.finalize();
+        // On the block the template was built on, which may be newer than the tip read before
+        return mineBlock(getTemplate().newBlock(myAddress));
+    }
+
+    /**
+     * mine {@code current}, a block taken from the template, and add it to the block chain. Does
+     * not touch the template, so it may run while others use it. Returns null if another block
+     * becomes the max height block while mining or the block is not added.
+     */
+    public Block mineBlock(final Block current) {
+        int difficulty = blockChain.getDifficulty();
+        if (difficulty == 0)
+            current.finalize();
+        else if (!getMiner().mine(current, difficulty,
+                () -> !Arrays.equals(blockChain.getMaxHeightBlock().getHash(), current.getPrevBlockHash())))
+            return null;
         if (blockChain.addBlock(current))
             return current;
         else
@@ -42,6 +73,21 @@ public class BlockHandler {
 
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+        if (blockChain.addTransaction(tx))
+            getTemplate().add(tx);
+    }
+
+    /** @return the miner {@code createBlock} uses, with its hash rate, started on first use */
+    public synchronized Miner getMiner() {
+        if (miner == null)
+            miner = new Miner();
+        return miner;
+    }
+
+    /** @return the template of the next block, kept up to date with the mempool and the tip */
+    public synchronized BlockTemplate getTemplate() {
+        if (template == null)
+            template = new BlockTemplate(blockChain);
+        return template;
     }
 }
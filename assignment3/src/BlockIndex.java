@@ -0,0 +1,368 @@
+import java.util.Arrays;
+
+/**
+ * Compact index of the block tree. Nodes are plain int ids; the 32 byte block hash, parent,
+ * depth and child links of every node live in primitive arrays, and lookups by hash go through an
+ * open addressing table of ids. Only the payload ({@code T}) is an object per node.
+ *
+ * <p>
+ * Every node also has a skip pointer to one ancestor further down (as in Bitcoin's block index),
+ * chosen so that the ancestor at any height, and with it ancestry and common ancestor queries,
+ * takes a logarithmic number of steps instead of a walk along the parents.
+ *
+ * <p>
+ * Ids of removed nodes are reused. Not thread safe.
+ */
+public class BlockIndex<T> {
+
+	public static final int NONE = -1;
+	public static final int HASH_LENGTH = 32;
+
+	private static final int KEY_LONGS = HASH_LENGTH / 8;
+
+	// Linear probing table of node id + 1, 0 marks an empty slot. Kept at most half full
+	private int table[];
+
+	private long keys[];
+	private int parent[];
+	private int depth[];
+	private int skip[];
+	private int firstChild[];
+	private int nextSibling[];
+	private Object data[];
+
+	private int freeIds[];
+	private int freeCount = 0;
+	private int nextId = 0;
+	private int size = 0;
+
+	public BlockIndex() {
+		this(64);
+	}
+
+	public BlockIndex(int initialCapacity) {
+		int capacity = Math.max(4, initialCapacity);
+		keys = new long[capacity * KEY_LONGS];
+		parent = new int[capacity];
+		depth = new int[capacity];
+		skip = new int[capacity];
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		data = new Object[capacity];
+		freeIds = new int[capacity];
+		table = new int[tableSizeFor(capacity)];
+	}
+
+	private static int tableSizeFor(int capacity) {
+		return Integer.highestOneBit(capacity * 2 - 1) << 1;
+	}
+
+	/** @return the number of nodes in the index */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a node for {@code hash} below {@code parentId} ({@code NONE} for a root, which gets depth 1)
+	 *
+	 * @return the id of the new node
+	 */
+	public int add(byte hash[], int parentId, T value) {
+		if (hash == null || hash.length != HASH_LENGTH) {
+			throw new IllegalArgumentException("Block hash must be " + HASH_LENGTH + " bytes");
+		}
+		if (find(hash) != NONE) {
+			throw new IllegalArgumentException("Block already indexed");
+		}
+		int id = allocateId();
+		for (int i = 0;i < KEY_LONGS;i++) {
+			keys[id * KEY_LONGS + i] = getLong(hash, i * 8);
+		}
+		parent[id] = parentId;
+		depth[id] = parentId == NONE ? 1 : depth[parentId] + 1;
+		skip[id] = parentId == NONE ? NONE : getAncestor(parentId, skipDepth(depth[id]));
+		firstChild[id] = NONE;
+		nextSibling[id] = NONE;
+		if (parentId != NONE) {
+			// Appended, so children stay in insertion order (oldest first)
+			if (firstChild[parentId] == NONE) {
+				firstChild[parentId] = id;
+			} else {
+				int last = firstChild[parentId];
+				while (nextSibling[last] != NONE) {
+					last = nextSibling[last];
+				}
+				nextSibling[last] = id;
+			}
+		}
+		data[id] = value;
+		size++;
+
+		insertSlot(id);
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return id;
+	}
+
+	/** Adds a root node for {@code hash} at {@code depth}, as left behind by removing its ancestors */
+	public int addRoot(byte hash[], int depth, T value) {
+		int id = add(hash, NONE, value);
+		this.depth[id] = depth;
+		return id;
+	}
+
+	// Bitcoin's GetSkipHeight: far enough to skip much of the way, and such that following skip and
+	// parent pointers reaches any ancestor in O(log depth) steps
+	private static int skipDepth(int depth) {
+		if (depth < 2) {
+			return 0;
+		}
+		return (depth & 1) != 0 ? invertLowestOne(invertLowestOne(depth - 1)) + 1 : invertLowestOne(depth);
+	}
+
+	private static int invertLowestOne(int n) {
+		return n & (n - 1);
+	}
+
+	/** @return the ancestor of {@code id} (or {@code id} itself) at {@code depth}, {@code NONE} if there is none in the index */
+	public int getAncestor(int id, int depth) {
+		if (id == NONE || depth > this.depth[id] || depth < 1) {
+			return NONE;
+		}
+		int walk = id;
+		int walkDepth = this.depth[id];
+		while (walkDepth > depth) {
+			int skipTo = skipDepth(walkDepth);
+			int skipPrev = skipDepth(walkDepth - 1);
+			if (skip[walk] != NONE && (skipTo == depth
+					|| (skipTo > depth && !(skipPrev < skipTo - 2 && skipPrev >= depth)))) {
+				// Only skip if the parent's skip would not get closer
+				walk = skip[walk];
+				walkDepth = skipTo;
+			} else {
+				walk = parent[walk];
+				walkDepth--;
+				if (walk == NONE) {
+					return NONE;
+				}
+			}
+		}
+		return walk;
+	}
+
+	/** @return true if {@code ancestor} is {@code id} or one of its ancestors */
+	public boolean isAncestor(int ancestor, int id) {
+		return ancestor != NONE && getAncestor(id, depth[ancestor]) == ancestor;
+	}
+
+	/**
+	 * @return the deepest node that is {@code a} or an ancestor of it and also {@code b} or an
+	 *         ancestor of it, {@code NONE} if they are in different trees
+	 */
+	public int commonAncestor(int a, int b) {
+		// Going down from the shallower node, the ancestors of the two first differ, then agree
+		// (from the common ancestor on) and then do not exist. Binary search for the first that differ
+		int low = 0;
+		int high = Math.min(depth[a], depth[b]);
+		if (getAncestor(a, high) == getAncestor(b, high)) {
+			return getAncestor(a, high);
+		}
+		// high differs; find the deepest height below it that does not
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			int ancestorA = getAncestor(a, mid);
+			int ancestorB = getAncestor(b, mid);
+			if (ancestorA != NONE && ancestorB != NONE && ancestorA != ancestorB) {
+				high = mid;
+			} else {
+				low = mid;
+			}
+		}
+		return getAncestor(a, low) == getAncestor(b, low) ? getAncestor(a, low) : NONE;
+	}
+
+	/** @return the id of the node for {@code hash}, or {@code NONE} */
+	public int find(byte hash[]) {
+		if (hash == null || hash.length != HASH_LENGTH) {
+			return NONE;
+		}
+		long k0 = getLong(hash, 0);
+		long k1 = getLong(hash, 8);
+		long k2 = getLong(hash, 16);
+		long k3 = getLong(hash, 24);
+		int mask = table.length - 1;
+		for (int slot = slotOf(k0, mask);;slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == 0) {
+				return NONE;
+			}
+			int id = entry - 1;
+			int base = id * KEY_LONGS;
+			if (keys[base] == k0 && keys[base + 1] == k1 && keys[base + 2] == k2 && keys[base + 3] == k3) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Removes node {@code id}. Its children become roots (their depth is kept) and the node is
+	 * unlinked from its parent, if that is still present.
+	 */
+	public void remove(int id) {
+		removeSlot(id);
+		for (int child = firstChild[id];child != NONE;) {
+			int next = nextSibling[child];
+			parent[child] = NONE;
+			nextSibling[child] = NONE;
+			clearSkipsBelow(child, depth[child]);
+			child = next;
+		}
+		int p = parent[id];
+		if (p != NONE) {
+			if (firstChild[p] == id) {
+				firstChild[p] = nextSibling[id];
+			} else {
+				int prev = firstChild[p];
+				while (nextSibling[prev] != id) {
+					prev = nextSibling[prev];
+				}
+				nextSibling[prev] = nextSibling[id];
+			}
+		}
+		parent[id] = NONE;
+		skip[id] = NONE;
+		firstChild[id] = NONE;
+		nextSibling[id] = NONE;
+		data[id] = null;
+		freeIds[freeCount++] = id;
+		size--;
+	}
+
+	public int getParent(int id) {
+		return parent[id];
+	}
+
+	public int getDepth(int id) {
+		return depth[id];
+	}
+
+	/** @return the oldest child of {@code id}, or {@code NONE} */
+	public int getFirstChild(int id) {
+		return firstChild[id];
+	}
+
+	/** @return the next younger sibling of {@code id}, or {@code NONE} */
+	public int getNextSibling(int id) {
+		return nextSibling[id];
+	}
+
+	@SuppressWarnings("unchecked")
+	public T getData(int id) {
+		return (T) data[id];
+	}
+
+	public void setData(int id, T value) {
+		data[id] = value;
+	}
+
+	/** @return a copy of the hash of node {@code id} */
+	public byte[] getHash(int id) {
+		byte hash[] = new byte[HASH_LENGTH];
+		for (int i = 0;i < KEY_LONGS;i++) {
+			long k = keys[id * KEY_LONGS + i];
+			for (int j = 0;j < 8;j++) {
+				hash[i * 8 + j] = (byte) (k >>> (56 - 8 * j));
+			}
+		}
+		return hash;
+	}
+
+	// The skip pointers in the subtree of the new root that point below it are stale now
+	private void clearSkipsBelow(int root, int rootDepth) {
+		int stack[] = new int[16];
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[--top];
+			if (skip[node] != NONE && skipDepth(depth[node]) < rootDepth) {
+				skip[node] = NONE;
+			}
+			for (int child = firstChild[node];child != NONE;child = nextSibling[child]) {
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, top * 2);
+				}
+				stack[top++] = child;
+			}
+		}
+	}
+
+	private int allocateId() {
+		if (freeCount > 0) {
+			return freeIds[--freeCount];
+		}
+		if (nextId == parent.length) {
+			int capacity = parent.length * 2;
+			keys = Arrays.copyOf(keys, capacity * KEY_LONGS);
+			parent = Arrays.copyOf(parent, capacity);
+			depth = Arrays.copyOf(depth, capacity);
+			skip = Arrays.copyOf(skip, capacity);
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			nextSibling = Arrays.copyOf(nextSibling, capacity);
+			data = Arrays.copyOf(data, capacity);
+			freeIds = Arrays.copyOf(freeIds, capacity);
+		}
+		return nextId++;
+	}
+
+	// Hashes are SHA-256 output already, so the first 8 bytes spread well enough
+	private static int slotOf(long k0, int mask) {
+		return (int) (k0 ^ (k0 >>> 32)) & mask;
+	}
+
+	private void insertSlot(int id) {
+		int mask = table.length - 1;
+		int slot = slotOf(keys[id * KEY_LONGS], mask);
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = id + 1;
+	}
+
+	// Backward shift deletion, keeps probe sequences intact without tombstones
+	private void removeSlot(int id) {
+		int mask = table.length - 1;
+		int slot = slotOf(keys[id * KEY_LONGS], mask);
+		while (table[slot] != id + 1) {
+			slot = (slot + 1) & mask;
+		}
+		int hole = slot;
+		for (int next = (hole + 1) & mask;table[next] != 0;next = (next + 1) & mask) {
+			int home = slotOf(keys[(table[next] - 1) * KEY_LONGS], mask);
+			// move the entry back if its home slot is not between the hole and its position
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				hole = next;
+			}
+		}
+		table[hole] = 0;
+	}
+
+	private void rehash(int tableSize) {
+		int old[] = table;
+		table = new int[tableSize];
+		for (int entry:old) {
+			if (entry != 0) {
+				insertSlot(entry - 1);
+			}
+		}
+	}
+
+	private static long getLong(byte b[], int off) {
+		long retVal = 0;
+		for (int i = 0;i < 8;i++) {
+			retVal = (retVal << 8) | (b[off + i] & 0xffL);
+		}
+		return retVal;
+	}
+}
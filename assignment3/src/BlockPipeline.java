@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Staged ingestion of blocks into a {@code BlockChain}, for bursts of incoming blocks.
+ *
+ * <p>
+ * Every block passes four stages, each with its own thread and a bounded queue in front of it:
+ * <ol>
+ * <li>hash: the block hash must match the header (merkle root included)</li>
+ * <li>stateless: coinbase, non-negative outputs, no output claimed twice within the block</li>
+ * <li>signatures: verified for every input whose output is created earlier in the block or is in
+ * the current tip pool; results go to the chain's {@code SignatureCache}</li>
+ * <li>connect: {@code BlockChain.addBlock}, which finds those signatures cached</li>
+ * </ol>
+ * So up to four blocks are worked on at once, and blocks reach {@code addBlock} in the order they
+ * were submitted. Blocks may be added to the chain by other threads meanwhile; the signature stage
+ * reads whatever tip is current, it only decides which signatures get cached ahead.
+ */
+public class BlockPipeline {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	private final BlockChain blockChain;
+	private final SignatureCache signatureCache;
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	private static class Job {
+		final Block block;
+		final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		long enqueuedAt;
+
+		Job(Block block) {
+			this.block = block;
+		}
+	}
+
+	/** Queue depth and timing of one stage */
+	public static class StageStats {
+		public final String name;
+		public final int queueDepth;
+		public final long processed;
+		public final long rejected;
+		public final double avgQueueMillis;
+		public final double avgProcessMillis;
+
+		StageStats(String name, int queueDepth, long processed, long rejected, long queueNanos, long processNanos) {
+			this.name = name;
+			this.queueDepth = queueDepth;
+			this.processed = processed;
+			this.rejected = rejected;
+			this.avgQueueMillis = processed == 0 ? 0 : queueNanos / 1e6 / processed;
+			this.avgProcessMillis = processed == 0 ? 0 : processNanos / 1e6 / processed;
+		}
+
+		public String toString() {
+			return name + ": depth=" + queueDepth + " processed=" + processed + " rejected=" + rejected
+					+ " queue=" + String.format("%.3f", avgQueueMillis) + "ms process=" + String.format("%.3f", avgProcessMillis) + "ms";
+		}
+	}
+
+	private class Stage implements Runnable {
+		final String name;
+		final Predicate<Block> check;
+		final BlockingQueue<Job> queue;
+		Stage next;
+
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong queueNanos = new AtomicLong();
+		final AtomicLong processNanos = new AtomicLong();
+
+		Stage(String name, int capacity, Predicate<Block> check) {
+			this.name = name;
+			this.check = check;
+			this.queue = new ArrayBlockingQueue<Job>(capacity);
+		}
+
+		void put(Job job) throws InterruptedException {
+			job.enqueuedAt = System.nanoTime();
+			queue.put(job);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Job job = queue.take();
+					long start = System.nanoTime();
+					boolean passed;
+					try {
+						passed = check.test(job.block);
+					} catch (Throwable e) {
+						// Errors too (e.g. a broken invariant), the stage has to keep serving the jobs behind
+						job.result.completeExceptionally(e);
+						continue;
+					} finally {
+						processed.incrementAndGet();
+						queueNanos.addAndGet(start - job.enqueuedAt);
+						processNanos.addAndGet(System.nanoTime() - start);
+					}
+					if (!passed) {
+						rejected.incrementAndGet();
+						job.result.complete(false);
+					} else if (next == null) {
+						job.result.complete(true);
+					} else {
+						next.put(job);
+					}
+				}
+			} catch (InterruptedException e) {
+				// shutdown
+			}
+		}
+
+		StageStats getStats() {
+			return new StageStats(name, queue.size(), processed.get(), rejected.get(), queueNanos.get(), processNanos.get());
+		}
+	}
+
+	public BlockPipeline(BlockChain blockChain) {
+		this(blockChain, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/** Starts the stage threads, each stage queues at most {@code queueCapacity} blocks */
+	public BlockPipeline(BlockChain blockChain, int queueCapacity) {
+		this.blockChain = blockChain;
+		this.signatureCache = blockChain.signatureCache;
+
+		stages.add(new Stage("hash", queueCapacity, this::isHashValid));
+		stages.add(new Stage("stateless", queueCapacity, this::isStatelessValid));
+		stages.add(new Stage("signatures", queueCapacity, this::areKnownSignaturesValid));
+		stages.add(new Stage("connect", queueCapacity, this::connect));
+		for (int i = 0;i < stages.size();i++) {
+			Stage stage = stages.get(i);
+			stage.next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+			Thread t = new Thread(stage, "block-pipeline-" + stage.name);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Queues {@code block}, blocking while the first stage is full.
+	 *
+	 * @return true once the block has been added, false if any stage rejected it
+	 */
+	public Future<Boolean> submit(Block block) throws InterruptedException {
+		Job job = new Job(block);
+		if (block == null) {
+			job.result.complete(false);
+		} else {
+			stages.get(0).put(job);
+		}
+		return job.result;
+	}
+
+	/** @return queue depth and timing of every stage, in pipeline order */
+	public List<StageStats> getStats() {
+		List<StageStats> retVal = new ArrayList<StageStats>();
+		for (Stage stage:stages) {
+			retVal.add(stage.getStats());
+		}
+		return retVal;
+	}
+
+	private boolean isHashValid(Block block) {
+		return block.getHash() != null && Arrays.equals(block.getHash(), block.computeHash());
+	}
+
+	private boolean isStatelessValid(Block block) {
+		if (block.getPrevBlockHash() == null || block.getCoinbase() == null || !block.getCoinbase().isCoinbase()) {
+			return false;
+		}
+		Set<UTXO> claimed = new HashSet<UTXO>();
+		for (Transaction tx:block.getTransactions()) {
+			if (tx.getHash() == null || !TxHandler.isValidStateless(tx)) {
+				return false;
+			}
+			for (Transaction.Input in:tx.getInputs()) {
+				if (!claimed.add(new UTXO(in.prevTxHash, in.outputIndex))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Fails only on a signature that can never become valid, unknown outputs are left to addBlock
+	private boolean areKnownSignaturesValid(Block block) {
+		UTXOPool pool = blockChain.getMaxHeightUTXOPool();  // not modified later, safe to read unlocked
+		Map<UTXO, Transaction.Output> created = new HashMap<UTXO, Transaction.Output>();
+		for (Transaction tx:block.getTransactions()) {
+			for (int i = 0;i < tx.numInputs();i++) {
+				Transaction.Input in = tx.getInput(i);
+				UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+				Transaction.Output out = created.get(utxo);
+				if (out == null) {
+					out = pool.getTxOutput(utxo);
+				}
+				if (out != null && !signatureCache.verifySignature(tx, i, out.address)) {
+					return false;
+				}
+			}
+			for (int i = 0;i < tx.numOutputs();i++) {
+				created.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+			}
+		}
+		return true;
+	}
+
+	private boolean connect(Block block) {
+		return blockChain.addBlock(block);
+	}
+}
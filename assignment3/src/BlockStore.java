@@ -0,0 +1,351 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Append-only store of blocks on disk, so accepted blocks survive a restart and pruning.
+ *
+ * <p>
+ * Blocks go into segment files {@code blocks-NNNNN.dat}; a segment is closed once it passes
+ * {@code segmentSize} bytes. Every record is its length, whether the block was verified in full
+ * (see {@link #append(Block, int, boolean)}), the block hash and the serialized block.
+ * The index {@code index.dat} is a memory-mapped open addressing table from block hash to
+ * (segment, offset, length, height), so a block is found without reading anything else and its
+ * bytes are mapped straight from the segment. Records the index missed (crash between the two
+ * writes) are re-indexed from the segments when the store is opened.
+ *
+ * <p>
+ * Not thread safe.
+ */
+public class BlockStore implements Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	private static final int MAGIC = 0x424c4b34;  // "BLK4", records carry a verified flag
+	private static final int HASH_LENGTH = BlockIndex.HASH_LENGTH;
+	// magic, capacity, count, last indexed segment, end of the last indexed record
+	private static final int HEADER_SIZE = 32;
+	// hash, segment, offset (long), length (0 = empty slot), height
+	private static final int SEGMENT_AT = HASH_LENGTH;
+	private static final int OFFSET_AT = SEGMENT_AT + 4;
+	private static final int LENGTH_AT = OFFSET_AT + 8;
+	private static final int HEIGHT_AT = LENGTH_AT + 4;
+	private static final int SLOT_SIZE = HEIGHT_AT + 4;
+	private static final int INITIAL_CAPACITY = 1024;
+	// length, verified flag and hash in front of every block
+	private static final int VERIFIED_AT = 4;
+	private static final int HASH_AT = VERIFIED_AT + 1;
+	private static final int RECORD_HEADER = HASH_AT + HASH_LENGTH;
+
+	private final File dir;
+	private final int segmentSize;
+	private final List<FileChannel> segments = new ArrayList<FileChannel>();
+
+	private MappedByteBuffer index;
+	private int capacity;
+	private int count;
+
+	public BlockStore(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/** Opens the store in {@code dir}, creating it if needed */
+	public BlockStore(File dir, int segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		for (int s = 0;segmentFile(s).exists();s++) {
+			segments.add(FileChannel.open(segmentFile(s).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+		}
+
+		File indexFile = new File(dir, "index.dat");
+		if (indexFile.exists() && indexFile.length() >= HEADER_SIZE) {
+			index = map(indexFile, indexFile.length());
+			if (index.getInt(0) != MAGIC) {
+				throw new IOException("Not a block index: " + indexFile);
+			}
+			capacity = index.getInt(4);
+			count = index.getInt(8);
+		} else {
+			capacity = INITIAL_CAPACITY;
+			index = map(indexFile, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+			index.putInt(0, MAGIC);
+			index.putInt(4, capacity);
+		}
+		reindexTail();
+	}
+
+	private File segmentFile(int segment) {
+		return new File(dir, String.format("blocks-%05d.dat", segment));
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	// Indexes the records appended after the last one the index knows of
+	private void reindexTail() throws IOException {
+		int segment = index.getInt(12);
+		long position = index.getLong(16);
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		for (;segment < segments.size();segment++, position = 0) {
+			FileChannel channel = segments.get(segment);
+			while (position + RECORD_HEADER <= channel.size()) {
+				header.clear();
+				channel.read(header, position);
+				int length = header.getInt(0);
+				if (length <= 0 || position + RECORD_HEADER + length > channel.size()) {
+					channel.truncate(position);  // torn write
+					break;
+				}
+				byte hash[] = new byte[HASH_LENGTH];
+				header.position(HASH_AT);
+				header.get(hash);
+				if (findSlot(hash) < 0) {
+					Block block = Serialization.toBlock(channel.map(FileChannel.MapMode.READ_ONLY, position + RECORD_HEADER, length));
+					Integer parentHeight = block.getPrevBlockHash() == null ? Integer.valueOf(0) : getHeight(block.getPrevBlockHash());
+					insert(hash, segment, position, length, parentHeight == null ? 0 : parentHeight + 1);
+				}
+				position += RECORD_HEADER + length;
+				setIndexed(segment, position);
+			}
+		}
+	}
+
+	/**
+	 * Appends {@code block} at depth {@code height}, unless a block with its hash is stored already
+	 *
+	 * @return false if it was stored already
+	 */
+	public boolean append(Block block, int height) throws IOException {
+		return append(block, height, true);
+	}
+
+	/**
+	 * As {@link #append(Block, int)}, for a block that may not have been {@code verified} in full,
+	 * e.g. whose signatures were skipped on assume-valid trust. Readers check such blocks again.
+	 */
+	public boolean append(Block block, int height, boolean verified) throws IOException {
+		byte hash[] = block.getHash();
+		if (hash == null || hash.length != HASH_LENGTH) {
+			throw new IllegalArgumentException("Block is not finalized");
+		}
+		if (findSlot(hash) >= 0) {
+			return false;
+		}
+		byte payload[] = Serialization.toBytes(block);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+		record.putInt(payload.length).put((byte) (verified ? 1 : 0)).put(hash).put(payload).flip();
+
+		int segment = segments.size() - 1;
+		if (segment < 0 || segments.get(segment).size() >= segmentSize) {
+			segment++;
+			segments.add(FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		}
+		FileChannel channel = segments.get(segment);
+		long position = channel.size();
+		while (record.hasRemaining()) {
+			channel.write(record, position + record.position());
+		}
+		insert(hash, segment, position, payload.length, height);
+		setIndexed(segment, position + record.limit());
+		return true;
+	}
+
+	/** @return the serialized block mapped from its segment (no copy), or null if not stored */
+	public ByteBuffer getRaw(byte hash[]) throws IOException {
+		int slot = findSlot(hash);
+		if (slot < 0) {
+			return null;
+		}
+		int base = slotOffset(slot);
+		FileChannel channel = segments.get(index.getInt(base + SEGMENT_AT));
+		return channel.map(FileChannel.MapMode.READ_ONLY, index.getLong(base + OFFSET_AT) + RECORD_HEADER, index.getInt(base + LENGTH_AT));
+	}
+
+	/** @return the block with hash {@code hash}, or null if not stored */
+	public Block get(byte hash[]) throws IOException {
+		ByteBuffer raw = getRaw(hash);
+		return raw == null ? null : Serialization.toBlock(raw);
+	}
+
+	/** @return false if the block was stored without being verified in full, or is not stored */
+	public boolean isVerified(byte hash[]) throws IOException {
+		int slot = findSlot(hash);
+		if (slot < 0) {
+			return false;
+		}
+		int base = slotOffset(slot);
+		ByteBuffer flag = ByteBuffer.allocate(1);
+		segments.get(index.getInt(base + SEGMENT_AT)).read(flag, index.getLong(base + OFFSET_AT) + VERIFIED_AT);
+		return flag.get(0) != 0;
+	}
+
+	/** @return the height the block was stored with, or null if not stored */
+	public Integer getHeight(byte hash[]) {
+		int slot = findSlot(hash);
+		return slot < 0 ? null : index.getInt(slotOffset(slot) + HEIGHT_AT);
+	}
+
+	public boolean contains(byte hash[]) {
+		return findSlot(hash) >= 0;
+	}
+
+	/** @return number of stored blocks */
+	public int size() {
+		return count;
+	}
+
+	/** @return all stored blocks in the order they were appended, so parents come before children */
+	public Iterable<Block> blocks() {
+		return () -> new Iterator<Block>() {
+			int segment = 0;
+			long position = 0;
+
+			public boolean hasNext() {
+				try {
+					while (segment < segments.size() && position >= segments.get(segment).size()) {
+						segment++;
+						position = 0;
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return segment < segments.size();
+			}
+
+			public Block next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				try {
+					FileChannel channel = segments.get(segment);
+					ByteBuffer length = ByteBuffer.allocate(4);
+					channel.read(length, position);
+					int size = length.getInt(0);
+					Block block = Serialization.toBlock(channel.map(FileChannel.MapMode.READ_ONLY, position + RECORD_HEADER, size));
+					position += RECORD_HEADER + size;
+					return block;
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	/** Forces appended blocks and the index to disk */
+	public void flush() throws IOException {
+		for (FileChannel channel:segments) {
+			channel.force(false);
+		}
+		index.force();
+	}
+
+	public void close() throws IOException {
+		flush();
+		for (FileChannel channel:segments) {
+			channel.close();
+		}
+	}
+
+	private void setIndexed(int segment, long position) {
+		index.putInt(12, segment);
+		index.putLong(16, position);
+	}
+
+	private static int slotOffset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static int startSlot(byte hash[], int capacity) {
+		// SHA-256 output, so the first bytes are as good as any hash of them
+		int h = ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) | ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+		return h & (capacity - 1);
+	}
+
+	private int findSlot(byte hash[]) {
+		if (hash == null || hash.length != HASH_LENGTH) {
+			return -1;
+		}
+		byte stored[] = new byte[HASH_LENGTH];
+		for (int slot = startSlot(hash, capacity);;slot = (slot + 1) & (capacity - 1)) {
+			int base = slotOffset(slot);
+			if (index.getInt(base + LENGTH_AT) == 0) {
+				return -1;
+			}
+			for (int i = 0;i < HASH_LENGTH;i++) {
+				stored[i] = index.get(base + i);
+			}
+			if (Arrays.equals(stored, hash)) {
+				return slot;
+			}
+		}
+	}
+
+	private void insert(byte hash[], int segment, long offset, int length, int height) throws IOException {
+		if (2 * (count + 1) > capacity) {
+			grow();
+		}
+		putSlot(index, capacity, hash, segment, offset, length, height);
+		count++;
+		index.putInt(8, count);
+	}
+
+	private static void putSlot(MappedByteBuffer table, int capacity, byte hash[], int segment, long offset, int length, int height) {
+		int slot = startSlot(hash, capacity);
+		while (table.getInt(slotOffset(slot) + LENGTH_AT) != 0) {
+			slot = (slot + 1) & (capacity - 1);
+		}
+		int base = slotOffset(slot);
+		for (int i = 0;i < HASH_LENGTH;i++) {
+			table.put(base + i, hash[i]);
+		}
+		table.putInt(base + SEGMENT_AT, segment);
+		table.putLong(base + OFFSET_AT, offset);
+		table.putInt(base + LENGTH_AT, length);
+		table.putInt(base + HEIGHT_AT, height);
+	}
+
+	// Rehashes into a table twice the size, written aside and then moved over the old index
+	private void grow() throws IOException {
+		int newCapacity = capacity * 2;
+		File tmp = new File(dir, "index.tmp");
+		Files.deleteIfExists(tmp.toPath());
+		MappedByteBuffer table = map(tmp, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+		table.putInt(0, MAGIC);
+		table.putInt(4, newCapacity);
+		table.putInt(8, count);
+		table.putInt(12, index.getInt(12));
+		table.putLong(16, index.getLong(16));
+		byte hash[] = new byte[HASH_LENGTH];
+		for (int slot = 0;slot < capacity;slot++) {
+			int base = slotOffset(slot);
+			int length = index.getInt(base + LENGTH_AT);
+			if (length != 0) {
+				for (int i = 0;i < HASH_LENGTH;i++) {
+					hash[i] = index.get(base + i);
+				}
+				putSlot(table, newCapacity, hash, index.getInt(base + SEGMENT_AT), index.getLong(base + OFFSET_AT), length, index.getInt(base + HEIGHT_AT));
+			}
+		}
+		table.force();
+		Files.move(tmp.toPath(), new File(dir, "index.dat").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		index = table;
+		capacity = newCapacity;
+	}
+}
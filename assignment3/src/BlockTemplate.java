@@ -0,0 +1,219 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The transactions the next block would contain, kept up to date as transactions arrive and the
+ * tip moves, so creating a block does not revalidate the whole mempool.
+ *
+ * <p>
+ * The template is a list of transactions in a valid order plus a view of the UTXO pool after them
+ * (tip pool with the template applied). A new transaction is validated against that view only.
+ * When the tip advances by one block, only that block is applied: included transactions leave the
+ * template, and template transactions conflicting with the block are rolled back together with
+ * their descendants. Any other tip change (reorg, several blocks) rebuilds the template from the
+ * mempool. Pooled transactions waiting for a missing input are kept while they are in the
+ * mempool, so the template holds no more than the mempool does.
+ */
+public class BlockTemplate {
+
+	private final BlockChain blockChain;
+
+	private byte baseHash[];
+	private UTXOPool view;
+	private final List<Transaction> txs = new ArrayList<Transaction>();
+	// Per template tx the outputs its inputs spent, to roll it back
+	private final Map<ByteArrayWrapper, Transaction.Output[]> spentOutputs = new HashMap<ByteArrayWrapper, Transaction.Output[]>();
+	// Which template tx spends an output
+	private final Map<UTXO, Transaction> spentBy = new HashMap<UTXO, Transaction>();
+	// Pooled transactions waiting for a missing input, by the hash of the tx that would create it
+	private final Map<ByteArrayWrapper, List<Transaction>> waiting = new HashMap<ByteArrayWrapper, List<Transaction>>();
+
+	public BlockTemplate(BlockChain blockChain) {
+		this.blockChain = blockChain;
+		rebuild();
+	}
+
+	/** @return the template transactions, in an order that is valid on top of the tip */
+	public List<Transaction> getTransactions() {
+		sync();
+		return new ArrayList<Transaction>(txs);
+	}
+
+	/**
+	 * @return a block (not finalized) holding the template transactions, on top of the block they
+	 *         were validated against
+	 */
+	public Block newBlock(PublicKey address) {
+		sync();
+		Block block = new Block(baseHash, address);
+		for (Transaction tx:txs) {
+			block.addTransaction(tx);
+		}
+		return block;
+	}
+
+	/** Validates {@code tx} against the template view and adds it if valid (or keeps it until its inputs show up) */
+	public void add(Transaction tx) {
+		sync();
+		addValidated(tx);
+	}
+
+	private void addValidated(Transaction tx) {
+		ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+		if (spentOutputs.containsKey(hash) || (tx.numOutputs() > 0 && view.contains(new UTXO(tx.getHash(), 0)))) {
+			return;  // already in the template or the chain
+		}
+		if (!TxHandler.isValidTx(tx, view, blockChain.signatureCache)) {
+			for (Transaction.Input in:tx.getInputs()) {
+				UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+				if (!view.contains(utxo) && !spentBy.containsKey(utxo)) {
+					ByteArrayWrapper parent = new ByteArrayWrapper(in.prevTxHash);
+					if (!waiting.containsKey(parent)) {
+						waiting.put(parent, new ArrayList<Transaction>());
+					}
+					waiting.get(parent).add(tx);
+					return;
+				}
+			}
+			return;  // invalid or conflicting
+		}
+
+		Transaction.Output spent[] = new Transaction.Output[tx.numInputs()];
+		for (int i = 0;i < tx.numInputs();i++) {
+			Transaction.Input in = tx.getInput(i);
+			UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+			spent[i] = view.getTxOutput(utxo);
+			view.removeUTXO(utxo);
+			spentBy.put(utxo, tx);
+		}
+		for (int i = 0;i < tx.numOutputs();i++) {
+			view.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+		}
+		spentOutputs.put(hash, spent);
+		txs.add(tx);
+
+		List<Transaction> children = waiting.remove(hash);
+		if (children != null) {
+			for (Transaction child:children) {
+				addValidated(child);
+			}
+		}
+	}
+
+	// Takes tx and everything spending its outputs back out of the template
+	private void rollback(Transaction tx) {
+		ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+		Transaction.Output spent[] = spentOutputs.remove(hash);
+		if (spent == null) {
+			return;
+		}
+		for (int i = 0;i < tx.numOutputs();i++) {
+			Transaction child = spentBy.get(new UTXO(tx.getHash(), i));
+			if (child != null) {
+				rollback(child);
+			}
+			view.removeUTXO(new UTXO(tx.getHash(), i));
+		}
+		for (int i = 0;i < tx.numInputs();i++) {
+			Transaction.Input in = tx.getInput(i);
+			UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+			spentBy.remove(utxo);
+			view.addUTXO(utxo, spent[i]);
+		}
+		txs.remove(tx);
+	}
+
+	// Brings the template to the current tip, by the delta of one block if possible
+	private void sync() {
+		Block tip = blockChain.getMaxHeightBlock();
+		if (!Arrays.equals(tip.getHash(), baseHash)) {
+			if (Arrays.equals(tip.getPrevBlockHash(), baseHash)) {
+				applyBlock(tip);
+			} else {
+				rebuild();
+			}
+		}
+
+		// Evicted from the mempool meanwhile (fee rate), take them out here too, and stop waiting for
+		// the inputs of those not yet in. The mempool is only read under the chain's lock, blocks may
+		// be changing it on other threads
+		List<Transaction> evicted = new ArrayList<Transaction>();
+		synchronized (blockChain) {
+			TransactionPool txPool = blockChain.getTransactionPool();
+			for (Transaction tx:txs) {
+				if (txPool.getTransaction(tx.getHash()) == null) {
+					evicted.add(tx);
+				}
+			}
+			Iterator<List<Transaction>> lists = waiting.values().iterator();
+			while (lists.hasNext()) {
+				List<Transaction> children = lists.next();
+				children.removeIf(tx -> txPool.getTransaction(tx.getHash()) == null);
+				if (children.isEmpty()) {
+					lists.remove();
+				}
+			}
+		}
+		for (Transaction tx:evicted) {
+			rollback(tx);
+		}
+	}
+
+	private void applyBlock(Block block) {
+		for (Transaction tx:block.getTransactions()) {
+			ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+			if (spentOutputs.remove(hash) != null) {
+				// Already applied to the view, it just is not pending any more
+				txs.remove(tx);
+				for (Transaction.Input in:tx.getInputs()) {
+					spentBy.remove(new UTXO(in.prevTxHash, in.outputIndex));
+				}
+				continue;
+			}
+			for (Transaction.Input in:tx.getInputs()) {
+				UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+				Transaction conflict = spentBy.get(utxo);
+				if (conflict != null) {
+					rollback(conflict);
+				}
+				view.removeUTXO(utxo);
+			}
+			for (int i = 0;i < tx.numOutputs();i++) {
+				view.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+			}
+			List<Transaction> children = waiting.remove(hash);
+			if (children != null) {
+				for (Transaction child:children) {
+					addValidated(child);
+				}
+			}
+		}
+		Transaction coinbase = block.getCoinbase();
+		view.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+		baseHash = block.getHash();
+	}
+
+	private void rebuild() {
+		txs.clear();
+		spentOutputs.clear();
+		spentBy.clear();
+		waiting.clear();
+		// Tip and mempool as of one moment; validating happens after, without the lock
+		ChainState state;
+		List<Transaction> pooled;
+		synchronized (blockChain) {
+			state = blockChain.getChainState();
+			pooled = blockChain.getTransactionPool().getTransactions();
+		}
+		view = new UTXOPool(state.getUtxoPool());
+		baseHash = state.getTip().getHash();
+		for (Transaction tx:pooled) {
+			addValidated(tx);
+		}
+	}
+}
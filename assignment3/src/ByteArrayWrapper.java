@@ -1,8 +1,8 @@
 
 import java.util.Arrays;
 
-/** a wrapper for byte array with hashCode and equals function implemented */
-public class ByteArrayWrapper {
+/** a wrapper for byte array with hashCode, equals and compareTo function implemented */
+public class ByteArrayWrapper implements Comparable<ByteArrayWrapper> {
 
     private byte[] contents;
 
@@ -44,4 +44,21 @@ public class ByteArrayWrapper {
     public int hashCode() {
         return Arrays.hashCode(contents);
     }
+
+    /** @return the wrapped bytes, do not modify */
+    public byte[] getContents() {
+        return contents;
+    }
+
+    /** Orders by unsigned byte values, a shorter array before any longer one it is a prefix of */
+    public int compareTo(ByteArrayWrapper other) {
+        byte[] b = other.contents;
+        int len = Math.min(contents.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (contents[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return contents.length - b.length;
+    }
 }
@@ -0,0 +1,30 @@
+/**
+ * The tip of a {@code BlockChain} at one moment: tip block, its height and the UTXO pool after it.
+ * Never changes once created; the chain publishes a new one each time the tip moves, so a reader
+ * holding one sees a consistent tip without locking the chain. Do not modify the pool.
+ */
+public final class ChainState {
+
+	private final Block tip;
+	private final int height;
+	private final UTXOPool utxoPool;
+
+	public ChainState(Block tip, int height, UTXOPool utxoPool) {
+		this.tip = tip;
+		this.height = height;
+		this.utxoPool = utxoPool;
+	}
+
+	public Block getTip() {
+		return tip;
+	}
+
+	/** @return depth of the tip, the genesis block being at height 1 */
+	public int getHeight() {
+		return height;
+	}
+
+	public UTXOPool getUtxoPool() {
+		return utxoPool;
+	}
+}
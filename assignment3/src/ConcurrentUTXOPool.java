@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread safe UTXOPool. Reads ({@code contains}, {@code getTxOutput}) go straight to a
+ * {@code ConcurrentHashMap} and never lock. Mutations share a read lock between them, so they
+ * only exclude the (short) copy made by {@code snapshot()}, which needs a consistent view.
+ * 
+ * <p>
+ * The per transaction index lives in a {@code ConcurrentSkipListMap} whose bitmaps are copied on
+ * write, so index queries do not lock either. A mutation updates the map and the index under a
+ * lock striped by transaction hash, so mutations of the outputs of one transaction never interleave
+ * and the two always agree once a mutation returns. A reader running alongside a mutation may see
+ * the map updated and the index not yet, snapshots never do.
+ */
+public class ConcurrentUTXOPool extends UTXOPool {
+
+	private final ConcurrentHashMap<UTXO, Transaction.Output> map;
+	private final ConcurrentSkipListMap<ByteArrayWrapper, BitSet> index;
+
+	// Inverted use of a read/write lock: many writers may hold the "read" side at once,
+	// a snapshot takes the "write" side to get a point in time copy
+	private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+	// Held while the map and the index change for a transaction hash, picked by that hash
+	private final Object stripes[] = new Object[64];
+
+	/** Creates a new empty ConcurrentUTXOPool */
+	public ConcurrentUTXOPool() {
+		this(new ConcurrentHashMap<UTXO, Transaction.Output>());
+	}
+
+	/** Creates a new ConcurrentUTXOPool that is a copy of {@code uPool} */
+	public ConcurrentUTXOPool(UTXOPool uPool) {
+		this(new ConcurrentHashMap<UTXO, Transaction.Output>(uPool.copyOfMap()));
+	}
+
+	private ConcurrentUTXOPool(ConcurrentHashMap<UTXO, Transaction.Output> map) {
+		this(map, new ConcurrentSkipListMap<ByteArrayWrapper, BitSet>());
+		for (UTXO utxo:map.keySet()) {
+			indexAdd(utxo);
+		}
+	}
+
+	private ConcurrentUTXOPool(ConcurrentHashMap<UTXO, Transaction.Output> map, ConcurrentSkipListMap<ByteArrayWrapper, BitSet> index) {
+		super(map, index);
+		this.map = map;
+		this.index = index;
+		for (int i = 0;i < stripes.length;i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	private Object stripeOf(UTXO utxo) {
+		return stripes[Arrays.hashCode(utxo.getTxHash()) & (stripes.length - 1)];
+	}
+
+	// Bitmaps in the index are never modified once published, so the remapping may be retried
+	@Override
+	protected void indexAdd(UTXO utxo) {
+		if (utxo.getIndex() < 0) {
+			return;
+		}
+		index.compute(new ByteArrayWrapper(utxo.getTxHash()), (k, bits) -> {
+			BitSet retVal = bits == null ? new BitSet() : (BitSet) bits.clone();
+			retVal.set(utxo.getIndex());
+			return retVal;
+		});
+	}
+
+	@Override
+	protected void indexRemove(UTXO utxo) {
+		if (utxo.getIndex() < 0) {
+			return;
+		}
+		index.computeIfPresent(new ByteArrayWrapper(utxo.getTxHash()), (k, bits) -> {
+			BitSet retVal = (BitSet) bits.clone();
+			retVal.clear(utxo.getIndex());
+			return retVal.isEmpty() ? null : retVal;
+		});
+	}
+
+	@Override
+	public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+		snapshotLock.readLock().lock();
+		try {
+			synchronized (stripeOf(utxo)) {
+				if (map.put(utxo, txOut) == null) {
+					indexAdd(utxo);
+				}
+			}
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeUTXO(UTXO utxo) {
+		spend(utxo);
+	}
+
+	/**
+	 * Adds {@code utxo} only if it is not already in the pool.
+	 * 
+	 * @return true if the UTXO was added
+	 */
+	public boolean addUTXOIfAbsent(UTXO utxo, Transaction.Output txOut) {
+		snapshotLock.readLock().lock();
+		try {
+			synchronized (stripeOf(utxo)) {
+				if (map.putIfAbsent(utxo, txOut) != null) {
+					return false;
+				}
+				indexAdd(utxo);
+				return true;
+			}
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Atomically removes {@code utxo} from the pool. When two threads spend the same UTXO only one
+	 * of them gets the output back.
+	 * 
+	 * @return the output that was spent, or null if {@code utxo} was not (or no longer) in the pool
+	 */
+	public Transaction.Output spend(UTXO utxo) {
+		snapshotLock.readLock().lock();
+		try {
+			synchronized (stripeOf(utxo)) {
+				Transaction.Output out = map.remove(utxo);
+				if (out != null) {
+					indexRemove(utxo);
+				}
+				return out;
+			}
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compare-and-remove: spends {@code utxo} only if it still maps to {@code expected}.
+	 * 
+	 * @return true if this call removed the UTXO
+	 */
+	public boolean spend(UTXO utxo, Transaction.Output expected) {
+		snapshotLock.readLock().lock();
+		try {
+			synchronized (stripeOf(utxo)) {
+				if (!map.remove(utxo, expected)) {
+					return false;
+				}
+				indexRemove(utxo);
+				return true;
+			}
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	/** @return the number of UTXOs currently in the pool */
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	protected HashMap<UTXO, Transaction.Output> copyOfMap() {
+		snapshotLock.writeLock().lock();
+		try {
+			return new HashMap<UTXO, Transaction.Output>(map);
+		} finally {
+			snapshotLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected NavigableMap<ByteArrayWrapper, BitSet> copyOfIndex(Map<UTXO, Transaction.Output> copiedMap) {
+		// Rebuilt from the consistent map copy rather than read from the live index
+		return buildIndex(copiedMap.keySet());
+	}
+
+	@Override
+	public ArrayList<UTXO> getAllUTXOSorted() {
+		return snapshot().getAllUTXOSorted();
+	}
+
+	/** @return a plain UTXOPool holding a consistent, point in time copy of this pool */
+	public UTXOPool snapshot() {
+		return new UTXOPool(this);
+	}
+
+	/** @return an iterator over a consistent copy of the UTXOs, unaffected by later updates */
+	public Iterator<UTXO> snapshotIterator() {
+		return copyOfMap().keySet().iterator();
+	}
+
+	@Override
+	public ArrayList<UTXO> getAllUTXO() {
+		return new ArrayList<UTXO>(copyOfMap().keySet());
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pipelined version of calling {@code TxHandler.handleTxs} for one epoch after the other.
+ *
+ * <p>
+ * Every submitted epoch is first pre-validated on a worker pool: the checks that do not depend on
+ * the pool (double claims within a tx, negative outputs) and the signatures of all inputs whose
+ * output is already known, either in the ledger or created by an epoch that is in flight. Since a
+ * UTXO always refers to the same output, a signature verified early is still good when the epoch
+ * is applied. The UTXO updates themselves run on a single thread, epoch by epoch, so the results
+ * are the same as with the sequential handler; only the signature work of upcoming epochs overlaps
+ * with the application of the current one.
+ *
+ * <p>
+ * At most {@code maxInFlight} epochs are accepted but not yet applied, {@code submit} blocks
+ * beyond that.
+ */
+public class EpochPipeline {
+
+	private final ConcurrentUTXOPool ledger;
+	private final SignatureCache signatureCache = new SignatureCache();
+	private final TxHandler txHandler;
+
+	// Outputs of transactions in epochs that are submitted but not applied yet
+	private final Map<UTXO, Transaction.Output> pendingOutputs = new ConcurrentHashMap<UTXO, Transaction.Output>();
+
+	private final Semaphore inFlight;
+	private final ExecutorService preValidators;
+	private final ExecutorService applier = Executors.newSingleThreadExecutor();
+
+	/** Creates a pipeline on top of (a copy of) {@code utxoPool} */
+	public EpochPipeline(UTXOPool utxoPool, int maxInFlight) {
+		this(utxoPool, maxInFlight, Runtime.getRuntime().availableProcessors());
+	}
+
+	public EpochPipeline(UTXOPool utxoPool, int maxInFlight, int preValidationThreads) {
+		ledger = new ConcurrentUTXOPool(utxoPool);
+		txHandler = TxHandler.wrapping(ledger, signatureCache);
+		inFlight = new Semaphore(maxInFlight);
+		preValidators = Executors.newFixedThreadPool(preValidationThreads);
+	}
+
+	/**
+	 * Queues {@code epoch}, blocking while {@code maxInFlight} epochs are pending.
+	 *
+	 * @return the accepted transactions of this epoch, as {@code handleTxs} would return them
+	 */
+	public Future<Transaction[]> submit(final Transaction[] epoch) throws InterruptedException {
+		inFlight.acquire();
+		for (Transaction tx:epoch) {
+			for (int i = 0;i < tx.numOutputs();i++) {
+				pendingOutputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+			}
+		}
+
+		final Future<Transaction[]> preValidated = preValidators.submit(() -> preValidate(epoch));
+		final CompletableFuture<Transaction[]> result = new CompletableFuture<Transaction[]>();
+		applier.execute(() -> {
+			try {
+				result.complete(txHandler.handleTxs(preValidated.get()));
+			} catch (ExecutionException e) {
+				result.completeExceptionally(e.getCause());
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			} finally {
+				for (Transaction tx:epoch) {
+					for (int i = 0;i < tx.numOutputs();i++) {
+						pendingOutputs.remove(new UTXO(tx.getHash(), i));
+					}
+				}
+				inFlight.release();
+			}
+		});
+		return result;
+	}
+
+	/** Runs all {@code epochs} through the pipeline and waits for the results, in order */
+	public List<Transaction[]> handleEpochs(Iterable<Transaction[]> epochs) throws InterruptedException {
+		List<Future<Transaction[]>> futures = new ArrayList<Future<Transaction[]>>();
+		for (Transaction[] epoch:epochs) {
+			futures.add(submit(epoch));
+		}
+		List<Transaction[]> retVal = new ArrayList<Transaction[]>();
+		for (Future<Transaction[]> f:futures) {
+			try {
+				retVal.add(f.get());
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Epoch failed", e.getCause());
+			}
+		}
+		return retVal;
+	}
+
+	// Drops txs that can never become valid and warms the signature cache for the rest
+	private Transaction[] preValidate(Transaction[] epoch) {
+		List<Transaction> retVal = new ArrayList<Transaction>(epoch.length);
+		for (Transaction tx:epoch) {
+			if (TxHandler.isValidStateless(tx) && isSignatureValidIfKnown(tx)) {
+				retVal.add(tx);
+			}
+		}
+		return retVal.toArray(new Transaction[retVal.size()]);
+	}
+
+	// false only if an input refers to a known output and its signature does not match
+	private boolean isSignatureValidIfKnown(Transaction tx) {
+		for (int i = 0;i < tx.numInputs();i++) {
+			Transaction.Input in = tx.getInput(i);
+			UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+			Transaction.Output out = ledger.getTxOutput(utxo);
+			if (out == null) {
+				out = pendingOutputs.get(utxo);
+			}
+			if (out != null && !signatureCache.verifySignature(tx, i, out.address)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return a consistent copy of the pool after the epochs applied so far */
+	public UTXOPool getUTXOPool() {
+		return ledger.snapshot();
+	}
+
+	/** Stops the pipeline threads, epochs already submitted are still applied */
+	public void shutdown() {
+		preValidators.shutdown();
+		applier.shutdown();
+	}
+}
@@ -0,0 +1,146 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Merkle tree over transaction hashes, as used for the block commitment. A node is the SHA-256 of
+ * its two children concatenated; a level with an odd number of nodes pairs its last node with
+ * itself (like Bitcoin). The root of an empty tree is all zeros.
+ *
+ * <p>
+ * All levels are kept, so appending a leaf only rehashes the path to the root and inclusion proofs
+ * are read off directly. Building a tree from many leaves hashes each level in parallel.
+ */
+public class MerkleTree {
+
+	public static final int HASH_LENGTH = 32;
+
+	// Levels below this size are not worth splitting over threads
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	// levels.get(0) are the leaves, the last level holds the root once there are leaves
+	private final List<List<byte[]>> levels = new ArrayList<List<byte[]>>();
+
+	public MerkleTree() {
+		levels.add(new ArrayList<byte[]>());
+	}
+
+	/** Builds the tree for {@code leaves} in one go, hashing large levels on all cores */
+	public static MerkleTree build(List<byte[]> leaves) {
+		MerkleTree tree = new MerkleTree();
+		List<byte[]> level = new ArrayList<byte[]>(leaves);
+		tree.levels.set(0, level);
+		while (level.size() > 1) {
+			final List<byte[]> below = level;
+			int parents = (below.size() + 1) / 2;
+			IntStream range = IntStream.range(0, parents);
+			if (parents >= PARALLEL_THRESHOLD) {
+				range = range.parallel();
+			}
+			byte above[][] = new byte[parents][];
+			range.forEach(i -> above[i] = hashPair(below, i));
+			level = new ArrayList<byte[]>(Arrays.asList(above));
+			tree.levels.add(level);
+		}
+		return tree;
+	}
+
+	private static byte[] hashPair(List<byte[]> level, int parent) {
+		byte left[] = level.get(2 * parent);
+		byte right[] = 2 * parent + 1 < level.size() ? level.get(2 * parent + 1) : left;
+		return hash(left, right);
+	}
+
+	private static byte[] hash(byte left[], byte right[]) {
+		MessageDigest md = SHA256.get();
+		md.update(left);
+		md.update(right);
+		return md.digest();
+	}
+
+	/** Appends {@code leaf}, only the nodes on its path to the root are recomputed */
+	public void append(byte leaf[]) {
+		levels.get(0).add(leaf);
+		int index = levels.get(0).size() - 1;
+		for (int l = 0;levels.get(l).size() > 1;l++) {
+			if (l + 1 == levels.size()) {
+				levels.add(new ArrayList<byte[]>());
+			}
+			List<byte[]> above = levels.get(l + 1);
+			int parent = index / 2;
+			byte node[] = hashPair(levels.get(l), parent);
+			if (parent < above.size()) {
+				above.set(parent, node);
+			} else {
+				above.add(node);
+			}
+			index = parent;
+		}
+	}
+
+	/**
+	 * @return true if two sibling nodes on some level are equal. Repeating the last nodes of an odd
+	 *         level gives the same root as pairing the last node with itself, so such a tree is a
+	 *         mutated copy of another one with the same root and must not be committed to
+	 */
+	public boolean isMutated() {
+		for (int l = 0;l < levels.size() - 1;l++) {
+			List<byte[]> level = levels.get(l);
+			for (int i = 0;i + 1 < level.size();i += 2) {
+				if (Arrays.equals(level.get(i), level.get(i + 1))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** @return the number of leaves */
+	public int size() {
+		return levels.get(0).size();
+	}
+
+	public byte[] getRoot() {
+		List<byte[]> top = levels.get(levels.size() - 1);
+		return top.isEmpty() ? new byte[HASH_LENGTH] : top.get(0);
+	}
+
+	/**
+	 * @return the sibling hashes from leaf {@code index} up to (not including) the root, which
+	 *         together with the leaf prove its inclusion
+	 */
+	public List<byte[]> getProof(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("No leaf " + index);
+		}
+		List<byte[]> proof = new ArrayList<byte[]>();
+		for (int l = 0;l < levels.size() - 1;l++) {
+			List<byte[]> level = levels.get(l);
+			int sibling = index ^ 1;
+			proof.add(sibling < level.size() ? level.get(sibling) : level.get(index));
+			index /= 2;
+		}
+		return proof;
+	}
+
+	/** @return true if {@code proof} shows that {@code leaf} is leaf number {@code index} under {@code root} */
+	public static boolean verifyProof(byte leaf[], int index, List<byte[]> proof, byte root[]) {
+		byte node[] = leaf;
+		for (byte sibling[]:proof) {
+			node = (index & 1) == 0 ? hash(node, sibling) : hash(sibling, node);
+			index /= 2;
+		}
+		return index == 0 && Arrays.equals(node, root);
+	}
+}
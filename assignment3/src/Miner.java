@@ -0,0 +1,173 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Proof-of-work search over the nonce of a block, on every core. Thread {@code t} of {@code n}
+ * tries the nonces {@code t, t + n, t + 2n, ...}. The header up to the nonce is built once; each
+ * thread keeps its own copy of it and its own {@code MessageDigest}, and only rewrites the four
+ * nonce bytes before every hash, so an attempt allocates nothing. One search runs at a time, the
+ * others wait on a {@code ReentrantLock} so a waiting virtual thread does not pin its carrier.
+ */
+public class Miner {
+
+	// Attempts between looks at whether to stop, small enough to stop within a millisecond or so
+	private static final int CHECK_INTERVAL = 1 << 12;
+	private static final long MAX_NONCE = 0xffffffffL;
+	private static final long NOT_FOUND = -1;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final int threads;
+	private final ExecutorService executor;
+	private final ReentrantLock searchLock = new ReentrantLock();
+	private final AtomicLong totalHashes = new AtomicLong();
+	private volatile long lastHashes;
+	private volatile long lastNanos;
+
+	/** A thread per core */
+	public Miner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public Miner(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Bad thread count " + threads);
+		}
+		this.threads = threads;
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, "miner-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		this.executor = Executors.newFixedThreadPool(threads, factory);
+	}
+
+	/**
+	 * Looks for a nonce that gives {@code block} a hash starting with {@code difficulty} zero bits
+	 * and finalizes the block with it. Gives up when {@code stop} returns true (asked every few
+	 * thousand attempts by each thread, e.g. whether the tip has moved), when the calling thread is
+	 * interrupted or when every nonce has been tried; change the block and mine again then.
+	 *
+	 * @return true if a nonce was found, false if the search gave up and left the block as it was
+	 */
+	public boolean mine(Block block, final int difficulty, final BooleanSupplier stop) {
+		searchLock.lock();
+		try {
+			return findNonce(block, difficulty, stop);
+		} finally {
+			searchLock.unlock();
+		}
+	}
+
+	private boolean findNonce(Block block, final int difficulty, final BooleanSupplier stop) {
+		final byte prefix[] = block.getHeaderPrefix();
+		final AtomicLong found = new AtomicLong(NOT_FOUND);
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		final AtomicLong hashes = new AtomicLong();
+
+		long start = System.nanoTime();
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int t = 0;t < threads;t++) {
+			final long first = t;
+			workers.add(executor.submit(() -> search(prefix, difficulty, first, stop, found, cancelled, hashes)));
+		}
+		try {
+			for (Future<?> worker:workers) {
+				worker.get();
+			}
+		} catch (InterruptedException e) {
+			cancelled.set(true);  // the workers see it at their next check
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			cancelled.set(true);
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			lastNanos = System.nanoTime() - start;
+			lastHashes = hashes.get();
+			totalHashes.addAndGet(lastHashes);
+		}
+
+		long nonce = found.get();
+		if (nonce == NOT_FOUND) {
+			return false;
+		}
+		block.setNonce((int) nonce);
+		block.finalize();
+		return true;
+	}
+
+	// One thread's share of the nonces, from first on in steps of threads
+	private void search(byte prefix[], int difficulty, long first, BooleanSupplier stop, AtomicLong found,
+			AtomicBoolean cancelled, AtomicLong hashes) {
+		MessageDigest md = SHA256.get();
+		byte header[] = Arrays.copyOf(prefix, prefix.length + Block.NONCE_LENGTH);
+		byte hash[] = new byte[md.getDigestLength()];
+		long tried = 0;
+		try {
+			for (long nonce = first;nonce <= MAX_NONCE;nonce += threads) {
+				Block.putNonce(header, prefix.length, (int) nonce);
+				md.update(header);
+				md.digest(hash, 0, hash.length);
+				tried++;
+				if (Block.meetsTarget(hash, difficulty)) {
+					found.compareAndSet(NOT_FOUND, nonce);
+					return;
+				}
+				if ((tried & (CHECK_INTERVAL - 1)) == 0
+						&& (found.get() != NOT_FOUND || cancelled.get() || stop.getAsBoolean())) {
+					return;
+				}
+			}
+		} catch (DigestException e) {
+			throw new AssertionError(e);  // the buffer is digest sized
+		} finally {
+			hashes.addAndGet(tried);
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/** @return hashes per second of the last search, found or not */
+	public double getHashesPerSecond() {
+		long nanos = lastNanos;
+		return nanos == 0 ? 0 : lastHashes / (nanos / 1e9);
+	}
+
+	/** @return hashes of the last search */
+	public long getLastHashes() {
+		return lastHashes;
+	}
+
+	/** @return hashes over all searches so far */
+	public long getTotalHashes() {
+		return totalHashes.get();
+	}
+
+	/** Stops the mining threads once the current search is over */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocks that arrived before their parent, indexed by the missing parent hash. Bounded; when full
+ * the oldest orphan is dropped.
+ */
+public class OrphanBlockPool {
+
+	public static final int DEFAULT_MAX_ORPHANS = 100;
+
+	private final int maxOrphans;
+	// By block hash, in arrival order for eviction
+	private final LinkedHashMap<ByteArrayWrapper, Block> orphans = new LinkedHashMap<ByteArrayWrapper, Block>();
+	private final Map<ByteArrayWrapper, List<Block>> byParent = new HashMap<ByteArrayWrapper, List<Block>>();
+
+	public OrphanBlockPool() {
+		this(DEFAULT_MAX_ORPHANS);
+	}
+
+	public OrphanBlockPool(int maxOrphans) {
+		this.maxOrphans = maxOrphans;
+	}
+
+	/**
+	 * Keeps {@code block} until its parent shows up
+	 *
+	 * @return false if the block is already kept or cannot be kept (no hash)
+	 */
+	public boolean add(Block block) {
+		if (block.getHash() == null || block.getPrevBlockHash() == null || maxOrphans <= 0) {
+			return false;
+		}
+		ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+		if (orphans.containsKey(hash)) {
+			return false;
+		}
+		if (orphans.size() >= maxOrphans) {
+			Iterator<Block> oldest = orphans.values().iterator();
+			Block evicted = oldest.next();
+			oldest.remove();
+			removeFromParent(evicted);
+		}
+		orphans.put(hash, block);
+		ByteArrayWrapper parent = new ByteArrayWrapper(block.getPrevBlockHash());
+		List<Block> siblings = byParent.get(parent);
+		if (siblings == null) {
+			siblings = new ArrayList<Block>();
+			byParent.put(parent, siblings);
+		}
+		siblings.add(block);
+		return true;
+	}
+
+	private void removeFromParent(Block block) {
+		ByteArrayWrapper parent = new ByteArrayWrapper(block.getPrevBlockHash());
+		List<Block> siblings = byParent.get(parent);
+		if (siblings != null) {
+			siblings.remove(block);
+			if (siblings.isEmpty()) {
+				byParent.remove(parent);
+			}
+		}
+	}
+
+	/** Removes and returns the orphans waiting for the block with hash {@code parentHash}, oldest first */
+	public List<Block> removeChildrenOf(byte parentHash[]) {
+		List<Block> children = byParent.remove(new ByteArrayWrapper(parentHash));
+		if (children == null) {
+			return new ArrayList<Block>();
+		}
+		for (Block child:children) {
+			orphans.remove(new ByteArrayWrapper(child.getHash()));
+		}
+		return children;
+	}
+
+	public boolean contains(byte hash[]) {
+		return orphans.containsKey(new ByteArrayWrapper(hash));
+	}
+
+	public int size() {
+		return orphans.size();
+	}
+}
@@ -0,0 +1,226 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary form of blocks, transactions, UTXO pools and diffs for the block store and snapshots. Public keys are
+ * written X.509 encoded; byte arrays are length prefixed with -1 for null. Hashes are written as
+ * they are and trusted on reading, {@code Block.finalize()} recomputes the block hash from them.
+ */
+public final class Serialization {
+
+	// Few distinct addresses, decoding an RSA key is far more expensive than the lookup
+	private static final ConcurrentHashMap<ByteArrayWrapper, PublicKey> KEYS = new ConcurrentHashMap<ByteArrayWrapper, PublicKey>();
+	private static final int MAX_KEYS = 10000;
+	// Anything longer is a corrupt length field rather than a hash, signature or key
+	private static final int MAX_BYTES = 1 << 16;
+
+	private Serialization() {
+	}
+
+	public static byte[] toBytes(Block block) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			writeBlock(new DataOutputStream(bytes), block);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new AssertionError(e);  // not from a byte array
+		}
+	}
+
+	/** Reads a block from the remaining bytes of {@code buffer}, without copying them first */
+	public static Block toBlock(ByteBuffer buffer) throws IOException {
+		return readBlock(input(buffer));
+	}
+
+	/** @return a stream over the remaining bytes of {@code buffer}, which it consumes */
+	public static DataInputStream input(final ByteBuffer buffer) {
+		return new DataInputStream(new InputStream() {
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+			}
+
+			public int read(byte b[], int off, int len) {
+				if (!buffer.hasRemaining()) {
+					return -1;
+				}
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+				return len;
+			}
+		});
+	}
+
+	public static void writeBlock(DataOutput out, Block block) throws IOException {
+		writeBytes(out, block.getPrevBlockHash());
+		out.writeInt(block.getNonce());
+		writeKey(out, block.getCoinbase().getOutput(0).address);
+		out.writeInt(block.getTransactions().size());
+		for (Transaction tx:block.getTransactions()) {
+			writeTransaction(out, tx);
+		}
+	}
+
+	/** @return the block, finalized, so its hash is computed from what was read */
+	public static Block readBlock(DataInput in) throws IOException {
+		byte prevHash[] = readBytes(in);
+		int nonce = in.readInt();
+		Block block = new Block(prevHash, readKey(in));
+		block.setNonce(nonce);
+		int txCnt = in.readInt();
+		for (int i = 0;i < txCnt;i++) {
+			block.addTransaction(readTransaction(in));
+		}
+		block.finalize();
+		return block;
+	}
+
+	public static void writeTransaction(DataOutput out, Transaction tx) throws IOException {
+		writeBytes(out, tx.getHash());
+		out.writeInt(tx.numInputs());
+		for (Transaction.Input in:tx.getInputs()) {
+			writeBytes(out, in.prevTxHash);
+			out.writeInt(in.outputIndex);
+			writeBytes(out, in.signature);
+		}
+		out.writeInt(tx.numOutputs());
+		for (Transaction.Output output:tx.getOutputs()) {
+			writeOutput(out, output);
+		}
+	}
+
+	public static Transaction readTransaction(DataInput in) throws IOException {
+		Transaction tx = new Transaction();
+		byte hash[] = readBytes(in);
+		int inCnt = in.readInt();
+		for (int i = 0;i < inCnt;i++) {
+			tx.addInput(readBytes(in), in.readInt());
+			tx.addSignature(readBytes(in), i);
+		}
+		int outCnt = in.readInt();
+		for (int i = 0;i < outCnt;i++) {
+			Transaction.Output output = readOutput(in);
+			tx.addOutput(output.value, output.address);
+		}
+		tx.setHash(hash);
+		return tx;
+	}
+
+	public static void writeOutput(DataOutput out, Transaction.Output output) throws IOException {
+		out.writeDouble(output.value);
+		writeKey(out, output.address);
+	}
+
+	public static Transaction.Output readOutput(DataInput in) throws IOException {
+		double value = in.readDouble();
+		return new Transaction().new Output(value, readKey(in));
+	}
+
+	/** Writes the (unspent output, value) pairs of {@code outputs}, e.g. a pool or half a diff */
+	public static void writeOutputs(DataOutput out, Map<UTXO, Transaction.Output> outputs) throws IOException {
+		out.writeInt(outputs.size());
+		for (Map.Entry<UTXO, Transaction.Output> e:outputs.entrySet()) {
+			writeBytes(out, e.getKey().getTxHash());
+			out.writeInt(e.getKey().getIndex());
+			writeOutput(out, e.getValue());
+		}
+	}
+
+	public static Map<UTXO, Transaction.Output> readOutputs(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Bad count " + count);
+		}
+		Map<UTXO, Transaction.Output> outputs = new HashMap<UTXO, Transaction.Output>();
+		for (int i = 0;i < count;i++) {
+			UTXO utxo = new UTXO(readBytes(in), in.readInt());
+			outputs.put(utxo, readOutput(in));
+		}
+		return outputs;
+	}
+
+	public static void writePool(DataOutput out, UTXOPool pool) throws IOException {
+		Map<UTXO, Transaction.Output> outputs = new HashMap<UTXO, Transaction.Output>();
+		for (UTXO utxo:pool.getAllUTXO()) {
+			outputs.put(utxo, pool.getTxOutput(utxo));
+		}
+		writeOutputs(out, outputs);
+	}
+
+	public static UTXOPool readPool(DataInput in) throws IOException {
+		UTXOPool pool = new UTXOPool();
+		for (Map.Entry<UTXO, Transaction.Output> e:readOutputs(in).entrySet()) {
+			pool.addUTXO(e.getKey(), e.getValue());
+		}
+		return pool;
+	}
+
+	public static void writeDiff(DataOutput out, UTXODiff diff) throws IOException {
+		writeOutputs(out, diff.getCreated());
+		writeOutputs(out, diff.getSpent());
+	}
+
+	public static UTXODiff readDiff(DataInput in) throws IOException {
+		Map<UTXO, Transaction.Output> created = readOutputs(in);
+		return new UTXODiff(created, readOutputs(in));
+	}
+
+	public static void writeKey(DataOutput out, PublicKey key) throws IOException {
+		writeBytes(out, key == null ? null : key.getEncoded());
+	}
+
+	public static PublicKey readKey(DataInput in) throws IOException {
+		byte encoded[] = readBytes(in);
+		if (encoded == null) {
+			return null;
+		}
+		ByteArrayWrapper id = new ByteArrayWrapper(encoded);
+		PublicKey key = KEYS.get(id);
+		if (key == null) {
+			try {
+				key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Bad public key", e);
+			}
+			if (KEYS.size() >= MAX_KEYS) {
+				KEYS.clear();
+			}
+			KEYS.putIfAbsent(id, key);
+		}
+		return key;
+	}
+
+	public static void writeBytes(DataOutput out, byte bytes[]) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static byte[] readBytes(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < -1 || length > MAX_BYTES) {
+			throw new IOException("Bad length " + length);
+		}
+		if (length == -1) {
+			return null;
+		}
+		byte bytes[] = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sharded alternative to {@code TxHandler} for high volume ledgers.
+ *
+ * <p>
+ * The UTXO space is split by transaction hash prefix over a number of shards. Every shard owns its
+ * part of the pool and is only ever touched by its own single thread, so shards share nothing and
+ * need no locks. A transaction whose inputs and outputs all live on one shard is validated and
+ * applied by that shard in one step. Other transactions use a two phase protocol: the inputs are
+ * reserved on their owning shards, the transaction is validated against the reserved outputs, and
+ * the reservations are then either committed (inputs removed, outputs added to the shard owning
+ * the new tx hash) or released.
+ *
+ * <p>
+ * Like {@code handleTxs}, transactions that fail are retried until a pass accepts nothing new. A
+ * transaction that only found one of its inputs reserved by another is not failed but retried,
+ * whatever became of the other; a pass that had nothing but such conflicts is followed by one that
+ * handles the transactions one at a time, where they cannot conflict. So every transaction
+ * {@code TxHandler} would accept is accepted, though which of two valid transactions spending the
+ * same output wins depends on timing.
+ */
+public class ShardedTxHandler {
+
+	private final Shard shards[];
+	private final ExecutorService coordinators;
+
+	private enum Outcome {
+		ACCEPTED, REJECTED, CONFLICT  // an input was reserved by another transaction
+	}
+
+	private static class Shard {
+		final UTXOPool pool = new UTXOPool();
+		final Set<UTXO> reserved = new HashSet<UTXO>();
+		final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+		// Reserves all of utxos, putting their outputs in outputs, or none of them
+		Outcome reserve(List<UTXO> utxos, Map<UTXO, Transaction.Output> outputs) {
+			for (UTXO utxo:utxos) {
+				Transaction.Output out = pool.getTxOutput(utxo);
+				if (out == null) {
+					return Outcome.REJECTED;
+				}
+				if (reserved.contains(utxo)) {
+					return Outcome.CONFLICT;
+				}
+				outputs.put(utxo, out);
+			}
+			reserved.addAll(utxos);
+			return Outcome.ACCEPTED;
+		}
+
+		void release(List<UTXO> utxos) {
+			reserved.removeAll(utxos);
+		}
+
+		void commitSpend(List<UTXO> utxos) {
+			for (UTXO utxo:utxos) {
+				reserved.remove(utxo);
+				pool.removeUTXO(utxo);
+			}
+		}
+
+		void addOutputs(Transaction tx) {
+			for (int i = 0;i < tx.numOutputs();i++) {
+				pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+			}
+		}
+
+		// Shard local fast path, validation and update in one step on the shard thread
+		Outcome handleLocal(Transaction tx, List<UTXO> inputs) {
+			for (UTXO utxo:inputs) {
+				if (reserved.contains(utxo)) {
+					return Outcome.CONFLICT;
+				}
+			}
+			if (!TxHandler.isValidTx(tx, pool)) {
+				return Outcome.REJECTED;
+			}
+			for (UTXO utxo:inputs) {
+				pool.removeUTXO(utxo);
+			}
+			addOutputs(tx);
+			return Outcome.ACCEPTED;
+		}
+	}
+
+	/** Creates a ledger of {@code shardCount} shards, initially holding the UTXOs of {@code utxoPool} */
+	public ShardedTxHandler(UTXOPool utxoPool, int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("Need at least one shard");
+		}
+		shards = new Shard[shardCount];
+		for (int i = 0;i < shardCount;i++) {
+			shards[i] = new Shard();
+		}
+		// No worker has run yet, so filling the pools from this thread is safe
+		for (UTXO utxo:utxoPool.getAllUTXO()) {
+			shards[shardOf(utxo.getTxHash())].pool.addUTXO(utxo, utxoPool.getTxOutput(utxo));
+		}
+		coordinators = Executors.newFixedThreadPool(2 * shardCount);
+	}
+
+	// Shard owning all outputs of the transaction with this hash, picked by the first two bytes
+	private int shardOf(byte txHash[]) {
+		int prefix = ((txHash[0] & 0xff) << 8) | (txHash.length > 1 ? txHash[1] & 0xff : 0);
+		return prefix % shards.length;
+	}
+
+	/**
+	 * Handles an epoch of unordered transactions like {@code TxHandler.handleTxs}, spread over the
+	 * shards.
+	 *
+	 * @return the accepted transactions, in the order of the passes that accepted them
+	 */
+	public Transaction[] handleTxs(Transaction[] possibleTxs) {
+		List<Transaction> returnedTx = new ArrayList<Transaction>();
+		List<Transaction> remainingTx = new ArrayList<Transaction>();
+		Collections.addAll(remainingTx, possibleTxs);
+
+		boolean serial = false;
+		while (!remainingTx.isEmpty()) {
+			List<Future<Outcome>> results = new ArrayList<Future<Outcome>>();
+			for (final Transaction tx:remainingTx) {
+				if (serial) {
+					results.add(CompletableFuture.completedFuture(handleTx(tx)));
+				} else {
+					results.add(coordinators.submit(() -> handleTx(tx)));
+				}
+			}
+			boolean foundSome = false;
+			boolean conflicts = false;
+			List<Transaction> notFoundTx = new ArrayList<Transaction>();
+			for (int i = 0;i < remainingTx.size();i++) {
+				Outcome outcome = get(results.get(i));
+				if (outcome == Outcome.ACCEPTED) {
+					foundSome = true;
+					returnedTx.add(remainingTx.get(i));
+				} else {
+					conflicts |= outcome == Outcome.CONFLICT;
+					notFoundTx.add(remainingTx.get(i));
+				}
+			}
+			remainingTx = notFoundTx;
+			if (!foundSome && !conflicts) {
+				break;
+			}
+			// Transactions may be holding each other's inputs (or lost them to invalid ones) every time
+			serial = !foundSome;
+		}
+
+		return returnedTx.toArray(new Transaction[returnedTx.size()]);
+	}
+
+	// Runs on a coordinator thread; only talks to shards through their workers
+	private Outcome handleTx(final Transaction tx) {
+		final Map<Integer, List<UTXO>> inputsByShard = new HashMap<Integer, List<UTXO>>();
+		for (Transaction.Input in:tx.getInputs()) {
+			UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+			Integer shard = shardOf(in.prevTxHash);
+			if (!inputsByShard.containsKey(shard)) {
+				inputsByShard.put(shard, new ArrayList<UTXO>());
+			}
+			inputsByShard.get(shard).add(utxo);
+		}
+		final int outShard = shardOf(tx.getHash());
+
+		if (inputsByShard.isEmpty() || (inputsByShard.size() == 1 && inputsByShard.containsKey(outShard))) {
+			final Shard shard = shards[outShard];
+			final List<UTXO> inputs = inputsByShard.isEmpty() ? new ArrayList<UTXO>() : inputsByShard.get(outShard);
+			return get(shard.worker.submit(() -> shard.handleLocal(tx, inputs)));
+		}
+
+		// Phase 1, reserve inputs on every shard involved
+		Map<Integer, Future<Outcome>> reservations = new HashMap<Integer, Future<Outcome>>();
+		Map<Integer, Map<UTXO, Transaction.Output>> outputs = new HashMap<Integer, Map<UTXO, Transaction.Output>>();
+		for (final Map.Entry<Integer, List<UTXO>> e:inputsByShard.entrySet()) {
+			final Shard shard = shards[e.getKey()];
+			final Map<UTXO, Transaction.Output> reserved = new HashMap<UTXO, Transaction.Output>();
+			outputs.put(e.getKey(), reserved);
+			reservations.put(e.getKey(), shard.worker.submit(() -> shard.reserve(e.getValue(), reserved)));
+		}
+		UTXOPool view = new UTXOPool();
+		List<Integer> reservedShards = new ArrayList<Integer>();
+		Outcome outcome = Outcome.ACCEPTED;
+		for (Map.Entry<Integer, Future<Outcome>> e:reservations.entrySet()) {
+			Outcome reservation = get(e.getValue());
+			if (reservation == Outcome.ACCEPTED) {
+				reservedShards.add(e.getKey());
+				for (Map.Entry<UTXO, Transaction.Output> r:outputs.get(e.getKey()).entrySet()) {
+					view.addUTXO(r.getKey(), r.getValue());
+				}
+			} else if (outcome != Outcome.REJECTED) {  // a missing input outweighs a conflict
+				outcome = reservation;
+			}
+		}
+
+		// Phase 2, commit or release. Signatures are checked here, off the shard threads
+		if (outcome == Outcome.ACCEPTED && !TxHandler.isValidTx(tx, view)) {
+			outcome = Outcome.REJECTED;
+		}
+		boolean valid = outcome == Outcome.ACCEPTED;
+		List<Future<?>> done = new ArrayList<Future<?>>();
+		for (Integer s:reservedShards) {
+			final Shard shard = shards[s];
+			final List<UTXO> utxos = inputsByShard.get(s);
+			if (valid) {
+				done.add(shard.worker.submit(() -> shard.commitSpend(utxos)));
+			} else {
+				done.add(shard.worker.submit(() -> shard.release(utxos)));
+			}
+		}
+		if (valid) {
+			final Shard shard = shards[outShard];
+			done.add(shard.worker.submit(() -> shard.addOutputs(tx)));
+		}
+		for (Future<?> f:done) {
+			get(f);
+		}
+		return outcome;
+	}
+
+	/** @return a copy of the current UTXO pool, merged from all shards */
+	public UTXOPool getUTXOPool() {
+		List<Future<UTXOPool>> copies = new ArrayList<Future<UTXOPool>>();
+		for (final Shard shard:shards) {
+			copies.add(shard.worker.submit((Callable<UTXOPool>) () -> new UTXOPool(shard.pool)));
+		}
+		UTXOPool retVal = new UTXOPool();
+		for (Future<UTXOPool> f:copies) {
+			UTXOPool part = get(f);
+			for (UTXO utxo:part.getAllUTXO()) {
+				retVal.addUTXO(utxo, part.getTxOutput(utxo));
+			}
+		}
+		return retVal;
+	}
+
+	/** Stops the shard and coordinator threads */
+	public void shutdown() {
+		coordinators.shutdown();
+		for (Shard shard:shards) {
+			shard.worker.shutdown();
+		}
+	}
+
+	private static <T> T get(Future<T> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for shard", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Shard task failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which transaction inputs already had their signature verified, so the same input is
+ * not checked again when a transaction is revalidated (next epoch, other fork, reconnected block).
+ *
+ * <p>
+ * An entry is keyed on the SHA-256 of exactly what was verified: the signed data of the input, the
+ * signature and the address it was checked against. The stored tx hash is not used, nothing
+ * guarantees it matches the transaction. Only successful checks are stored. Thread safe.
+ */
+public class SignatureCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final Set<ByteArrayWrapper> verified = ConcurrentHashMap.newKeySet();
+	private final int maxEntries;
+
+	public SignatureCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/** Creates a cache that is emptied when it grows beyond {@code maxEntries} */
+	public SignatureCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	// Every part length prefixed, so no two different triples hash the same bytes
+	private static ByteArrayWrapper key(byte signed[], byte signature[], PublicKey address) {
+		MessageDigest md = SHA256.get();
+		update(md, signed);
+		update(md, signature);
+		update(md, address == null ? null : address.getEncoded());
+		return new ByteArrayWrapper(md.digest());
+	}
+
+	private static void update(MessageDigest md, byte part[]) {
+		int length = part == null ? -1 : part.length;
+		md.update((byte) (length >>> 24));
+		md.update((byte) (length >>> 16));
+		md.update((byte) (length >>> 8));
+		md.update((byte) length);
+		if (part != null) {
+			md.update(part);
+		}
+	}
+
+	/**
+	 * @return true if the signature on input {@code index} of {@code tx} has already been verified
+	 *         against {@code address}
+	 */
+	public boolean isVerified(Transaction tx, int index, PublicKey address) {
+		return verified.contains(key(tx.getRawDataToSign(index), tx.getInput(index).signature, address));
+	}
+
+	/**
+	 * Verifies the signature on input {@code index} of {@code tx} against {@code address}, the owner
+	 * of the spent output, unless that was already done.
+	 */
+	public boolean verifySignature(Transaction tx, int index, PublicKey address) {
+		byte signed[] = tx.getRawDataToSign(index);
+		byte signature[] = tx.getInput(index).signature;
+		ByteArrayWrapper key = key(signed, signature, address);
+		if (verified.contains(key)) {
+			return true;
+		}
+		if (!Crypto.verifySignature(address, signed, signature)) {
+			return false;
+		}
+		if (verified.size() >= maxEntries) {
+			// Crude bound, a cleared cache only costs some repeated verifications
+			verified.clear();
+		}
+		verified.add(key);
+		return true;
+	}
+
+	public int size() {
+		return verified.size();
+	}
+}
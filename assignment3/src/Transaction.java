@@ -242,16 +242,24 @@ public class Transaction {
         return tx;
     }
 
-    public void finalize() {
+    /** @return the hash of the transaction as it is now, without storing it; compare with getHash() to verify */
+    public byte[] computeHash() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update(getRawTx());
-            hash = md.digest();
+            return md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
+            return null;
         }
     }
 
+    public void finalize() {
+        byte[] h = computeHash();
+        if (h != null)
+            hash = h;
+    }
+
     public void setHash(byte[] h) {
         hash = h;
     }
@@ -1,27 +1,131 @@
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 public class TransactionPool {
 
+    public static final int DEFAULT_MAX_TRANSACTIONS = 10000;
+
     private HashMap<ByteArrayWrapper, Transaction> H;
 
+    /** which pooled transactions spend a given output (more than one conflict), to find conflicts and descendants */
+    private HashMap<UTXO, LinkedHashSet<ByteArrayWrapper>> spentBy;
+    /** fee per byte of every pooled transaction */
+    private HashMap<ByteArrayWrapper, Double> feeRates;
+    /** the same, ordered by fee rate, cheapest first, for eviction */
+    private TreeSet<ByteArrayWrapper> byFeeRate;
+    private int maxTransactions;
+
     public TransactionPool() {
+        this(DEFAULT_MAX_TRANSACTIONS);
+    }
+
+    /** Creates a pool that holds at most {@code maxTransactions}, evicting the lowest fee rates */
+    public TransactionPool(int maxTransactions) {
+        this.maxTransactions = maxTransactions;
         H = new HashMap<ByteArrayWrapper, Transaction>();
+        spentBy = new HashMap<UTXO, LinkedHashSet<ByteArrayWrapper>>();
+        feeRates = new HashMap<ByteArrayWrapper, Double>();
+        byFeeRate = new TreeSet<ByteArrayWrapper>((a, b) -> {
+            int cmp = Double.compare(feeRates.get(a), feeRates.get(b));
+            return cmp != 0 ? cmp : a.compareTo(b);
+        });
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this(txPool.maxTransactions);
+        H.putAll(txPool.H);
+        for (Map.Entry<UTXO, LinkedHashSet<ByteArrayWrapper>> e : txPool.spentBy.entrySet())
+            spentBy.put(e.getKey(), new LinkedHashSet<ByteArrayWrapper>(e.getValue()));
+        feeRates.putAll(txPool.feeRates);
+        byFeeRate.addAll(txPool.byFeeRate);
     }
 
+    /** Adds {@code tx} with an unknown fee, i.e. the lowest priority */
     public void addTransaction(Transaction tx) {
+        addTransaction(tx, 0.0);
+    }
+
+    /**
+     * Adds {@code tx} paying {@code fee}. When the pool is full the transactions with the lowest fee
+     * per byte are evicted (with their descendants) to make room, unless {@code tx} pays less.
+     *
+     * @return true if {@code tx} is in the pool afterwards
+     */
+    public boolean addTransaction(Transaction tx, double fee) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        if (H.containsKey(hash))
+            return true;
+        double feeRate = fee / Math.max(1, tx.getRawTx().length);
+        while (H.size() >= maxTransactions) {
+            if (byFeeRate.isEmpty() || feeRates.get(byFeeRate.first()) >= feeRate)
+                return false;
+            removeWithDescendants(byFeeRate.first().getContents());
+        }
         H.put(hash, tx);
+        feeRates.put(hash, feeRate);
+        byFeeRate.add(hash);
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            LinkedHashSet<ByteArrayWrapper> spenders = spentBy.get(ut);
+            if (spenders == null) {
+                spenders = new LinkedHashSet<ByteArrayWrapper>();
+                spentBy.put(ut, spenders);
+            }
+            spenders.add(hash);
+        }
+        return true;
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Transaction tx = H.remove(hash);
+        if (tx == null)
+            return;
+        byFeeRate.remove(hash);
+        feeRates.remove(hash);
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            LinkedHashSet<ByteArrayWrapper> spenders = spentBy.get(ut);
+            if (spenders != null && spenders.remove(hash) && spenders.isEmpty())
+                spentBy.remove(ut);
+        }
+    }
+
+    /** Removes the transaction with hash {@code txHash} and every pooled transaction spending its outputs */
+    public void removeWithDescendants(byte[] txHash) {
+        Transaction tx = getTransaction(txHash);
+        if (tx == null)
+            return;
+        removeTransaction(txHash);
+        for (int i = 0; i < tx.numOutputs(); i++)
+            for (byte[] child : getSpenders(new UTXO(txHash, i)))
+                removeWithDescendants(child);
+    }
+
+    /**
+     * Removes what a confirmed {@code tx} makes obsolete: {@code tx} itself and any other pooled
+     * transaction spending one of its inputs (a conflict), along with their descendants
+     */
+    public void removeConfirmed(Transaction tx) {
+        removeTransaction(tx.getHash());
+        for (Transaction.Input in : tx.getInputs())
+            for (byte[] conflict : getSpenders(new UTXO(in.prevTxHash, in.outputIndex)))
+                removeWithDescendants(conflict);
+    }
+
+    /** @return the hashes of the pooled transactions spending {@code ut}, a copy, empty if none */
+    public List<byte[]> getSpenders(UTXO ut) {
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        LinkedHashSet<ByteArrayWrapper> spenders = spentBy.get(ut);
+        if (spenders != null)
+            for (ByteArrayWrapper hash : spenders)
+                hashes.add(hash.getContents());
+        return hashes;
     }
 
     public Transaction getTransaction(byte[] txHash) {
@@ -35,4 +139,8 @@ public class TransactionPool {
             T.add(tx);
         return T;
     }
+
+    public int size() {
+        return H.size();
+    }
 }
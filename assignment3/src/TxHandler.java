@@ -1,7 +1,16 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class TxHandler {
 	/**
@@ -11,9 +20,26 @@ public class TxHandler {
 	 */
 
 	private UTXOPool myUtxoPool;
+	private SignatureCache signatureCache;
 
 	public TxHandler(UTXOPool utxoPool) {
+		this(utxoPool, null);
+	}
+
+	/** Like {@code TxHandler(utxoPool)}, skipping signatures already verified in {@code signatureCache} */
+	public TxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
 		myUtxoPool = new UTXOPool(utxoPool);
+		this.signatureCache = signatureCache;
+	}
+
+	private TxHandler(SignatureCache signatureCache, UTXOPool utxoPool) {
+		myUtxoPool = utxoPool;
+		this.signatureCache = signatureCache;
+	}
+
+	// Uses utxoPool directly instead of a copy, for callers that own the pool (it is updated in place)
+	static TxHandler wrapping(UTXOPool utxoPool, SignatureCache signatureCache) {
+		return new TxHandler(signatureCache, utxoPool);
 	}
 
 	/**
@@ -28,13 +54,13 @@ public class TxHandler {
 	 */
 
 
-	private boolean isValidAllInputClaimsInPool(Transaction tx)
+	private static boolean isValidAllInputClaimsInPool(Transaction tx, UTXOPool pool)
 	{        	
 		// 1 all outputs claimed by {@code tx} are in the current UTXO pool,	
 		for (int index = 0;index < tx.numInputs();index++) {
 			Transaction.Input in = tx.getInput(index);    		
 			UTXO checker = new UTXO(in.prevTxHash, in.outputIndex);
-			if (!myUtxoPool.contains(checker)) {
+			if (!pool.contains(checker)) {
 				// System.err.println("Not valid due to missing in pool");
 				return false;
 			} 
@@ -45,12 +71,12 @@ public class TxHandler {
 
 
 
-	private boolean isValidAllInputClaimsSignatureValid(Transaction tx) {
+	private static boolean isValidAllInputClaimsSignatureValid(Transaction tx, UTXOPool pool, SignatureCache signatureCache) {
 		// (2) the signatures on each input of {@code tx} are valid, 
 		for (int index = 0;index < tx.numInputs();index++) {
 			Transaction.Input in = tx.getInput(index);    		
 			UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-			Transaction.Output out = myUtxoPool.getTxOutput(u);
+			Transaction.Output out = pool.getTxOutput(u);
 
 			if (out == null) {
 				// System.err.println("Not valid due to failed signature [1]");
@@ -64,6 +90,13 @@ public class TxHandler {
 			//             return false;
 			//          }    		
 
+			if (signatureCache != null) {
+				if (!signatureCache.verifySignature(tx, index, out.address)) {
+					return false;
+				}
+				continue;
+			}
+
 			byte message[] = tx.getRawDataToSign(index);
 			if (!Crypto.verifySignature(out.address, message, in.signature)) {
 				// System.err.println("Not valid due to failed signature [2]");
@@ -74,17 +107,15 @@ public class TxHandler {
 
 	}
 
-	private boolean isValidAllInputClaimsNoDoubleSpend(Transaction tx) {
+	private static boolean isValidAllInputClaimsNoDoubleSpend(Transaction tx) {
 		// (3) no UTXO is claimed multiple times by {@code tx},
-		UTXOPool spentPool = new UTXOPool();
+		Set<UTXO> spent = new HashSet<UTXO>();
 		for (int index = 0;index < tx.numInputs();index++) {
 			Transaction.Input in = tx.getInput(index);    		
 			UTXO checker = new UTXO(in.prevTxHash, in.outputIndex);
-			if (spentPool.contains(checker)) {
+			if (!spent.add(checker)) {
 				// System.err.println("Not valid due to double spend [1]");
 				return false;  // Double spend
-			} else {
-				spentPool.addUTXO(checker,null);    				
 			}
 		}
 		return true;
@@ -92,7 +123,7 @@ public class TxHandler {
 
 
 
-	private boolean isValidAllOutputSpendsNonNegative(Transaction tx) {
+	private static boolean isValidAllOutputSpendsNonNegative(Transaction tx) {
 		// (4) all of {@code tx}s output values are non-negative, and
 		for (int index = 0;index < tx.numOutputs();index++) {
 			Transaction.Output out = tx.getOutput(index);
@@ -106,7 +137,7 @@ public class TxHandler {
 
 
 
-	private double getOutputSpends(Transaction tx) {
+	private static double getOutputSpends(Transaction tx) {
 		double retVal = 0.0;
 		for (int i = 0;i < tx.numOutputs();i++) {
 			Transaction.Output out = tx.getOutput(i);
@@ -115,13 +146,13 @@ public class TxHandler {
 		return retVal;
 	}
 
-	private double getInputClaims(Transaction tx)
+	private static double getInputClaims(Transaction tx, UTXOPool pool)
 	{
 		double retValue = 0.0;
 		for (int i = 0;i < tx.numInputs();i++) {
 			Transaction.Input in = tx.getInput(i);
 			UTXO utxo = new UTXO(in.prevTxHash,in.outputIndex);
-			Transaction.Output out = myUtxoPool.getTxOutput(utxo);
+			Transaction.Output out = pool.getTxOutput(utxo);
 			if (out != null) {
 				retValue += out.value;
 			}
@@ -130,14 +161,14 @@ public class TxHandler {
 		return retValue;    	
 	}
 
-	private double getNetInputValue(Transaction tx) {
-		return getInputClaims(tx) - getOutputSpends(tx);    	
+	private static double getNetInputValue(Transaction tx, UTXOPool pool) {
+		return getInputClaims(tx, pool) - getOutputSpends(tx);    	
 	}
 
-	private boolean isValidAllInputClaimsLargerEqualThanOutputSpends(Transaction tx) {
+	private static boolean isValidAllInputClaimsLargerEqualThanOutputSpends(Transaction tx, UTXOPool pool) {
 		//  (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
 
-		double net = getNetInputValue(tx);   	
+		double net = getNetInputValue(tx, pool);   	
 		if (net < 0.0) {
 			// System.err.println("Not valid due to out > in");
 			return false;    		
@@ -146,11 +177,20 @@ public class TxHandler {
 	}
 
 	public boolean isValidTx(Transaction tx) {
-		if (!isValidAllInputClaimsInPool(tx)) {
+		return isValidTx(tx, myUtxoPool, signatureCache);
+	}
+
+	static boolean isValidTx(Transaction tx, UTXOPool pool) {
+		return isValidTx(tx, pool, null);
+	}
+
+	// Same checks against any pool, the result only depends on the entries for the inputs of tx
+	static boolean isValidTx(Transaction tx, UTXOPool pool, SignatureCache signatureCache) {
+		if (!isValidAllInputClaimsInPool(tx, pool)) {
 			return false;
 		}    	    
 
-		if (!isValidAllInputClaimsSignatureValid(tx)) {
+		if (!isValidAllInputClaimsSignatureValid(tx, pool, signatureCache)) {
 			return false;
 		}
 
@@ -162,13 +202,21 @@ public class TxHandler {
 			return false;
 		}
 
-		if (!isValidAllInputClaimsLargerEqualThanOutputSpends(tx)) {
+		if (!isValidAllInputClaimsLargerEqualThanOutputSpends(tx, pool)) {
 			return false;
 		}
 
 		return true;
 	}
 
+	/**
+	 * @return true if {@code tx} passes the checks that do not depend on any pool: (3) no double
+	 *         claims within the transaction and (4) non-negative outputs
+	 */
+	static boolean isValidStateless(Transaction tx) {
+		return isValidAllInputClaimsNoDoubleSpend(tx) && isValidAllOutputSpendsNonNegative(tx);
+	}
+
 	/**
 	 * Handles each epoch by receiving an unordered array of proposed transactions, checking each
 	 * transaction for correctness, returning a mutually valid array of accepted transactions, and
@@ -216,6 +264,223 @@ public class TxHandler {
 		return retVal;
 	}
 
+	// Result of validating a tx speculatively: the pool entries it read (its inputs) and the verdict
+	private static class Speculation {
+		final Transaction tx;
+		final Transaction.Output reads[];
+		final boolean valid;
+
+		Speculation(Transaction tx, UTXOPool pool, SignatureCache signatureCache) {
+			this.tx = tx;
+			reads = new Transaction.Output[tx.numInputs()];
+			for (int i = 0;i < reads.length;i++) {
+				Transaction.Input in = tx.getInput(i);
+				reads[i] = pool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+			}
+			valid = isValidTx(tx, pool, signatureCache);
+		}
+
+		// true if the pool still holds exactly what this speculation saw, so the verdict stands
+		boolean isReadSetUnchanged(UTXOPool pool) {
+			for (int i = 0;i < reads.length;i++) {
+				Transaction.Input in = tx.getInput(i);
+				if (pool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex)) != reads[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Same result as {@code handleTxs(possibleTxs)}, but the validation (signature checks mostly)
+	 * runs speculatively on {@code executor}.
+	 * 
+	 * <p>
+	 * Every pass of the sequential algorithm is done in two phases. First all remaining
+	 * transactions are validated in parallel against the (unchanged) pool, recording the outputs
+	 * each of them read. Then they are committed one by one in the original order; a transaction
+	 * whose read set was changed by an earlier commit in the same pass lost the race and is
+	 * re-executed against the current pool. The accepted transactions, their order and the
+	 * resulting pool are therefore identical to the sequential version.
+	 */
+	public Transaction[] handleTxs(Transaction[] possibleTxs, ExecutorService executor) {
+
+		List<Transaction> returnedTx = new ArrayList<Transaction>();
+		List<Transaction> remainingTx = new ArrayList<Transaction>();
+		Collections.addAll(remainingTx, possibleTxs);
+
+		boolean foundSome = true;
+		while (foundSome && !remainingTx.isEmpty()) {
+			foundSome = false;
+			List<Speculation> speculations = speculate(remainingTx, executor);
+			List<Transaction> notFoundTx = new ArrayList<Transaction>();
+			for (Speculation spec:speculations) {
+				boolean valid = spec.isReadSetUnchanged(myUtxoPool) ? spec.valid : isValidTx(spec.tx);
+				if (valid) {
+					foundSome = true;
+					doTransaction(spec.tx, myUtxoPool);
+					returnedTx.add(spec.tx);
+				} else {
+					notFoundTx.add(spec.tx);
+				}
+			}
+			remainingTx = notFoundTx;
+		}
+
+		return returnedTx.toArray(new Transaction[returnedTx.size()]);
+	}
+
+	// Validates txs in parallel chunks, the pool must not be modified while this runs
+	private List<Speculation> speculate(List<Transaction> txs, ExecutorService executor) {
+		int chunks = Math.min(txs.size(), Runtime.getRuntime().availableProcessors() * 4);
+		int chunkSize = (txs.size() + chunks - 1) / chunks;
+		List<Callable<List<Speculation>>> tasks = new ArrayList<Callable<List<Speculation>>>();
+		for (int start = 0;start < txs.size();start += chunkSize) {
+			final List<Transaction> chunk = txs.subList(start, Math.min(start + chunkSize, txs.size()));
+			tasks.add(() -> {
+				List<Speculation> specs = new ArrayList<Speculation>(chunk.size());
+				for (Transaction tx:chunk) {
+					specs.add(new Speculation(tx, myUtxoPool, signatureCache));
+				}
+				return specs;
+			});
+		}
+
+		List<Speculation> retVal = new ArrayList<Speculation>(txs.size());
+		for (List<Speculation> specs:invokeAll(executor, tasks)) {
+			retVal.addAll(specs);
+		}
+		return retVal;
+	}
+
+	private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+		List<T> retVal = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> f:executor.invokeAll(tasks)) {
+				retVal.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while validating transactions", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Transaction validation failed", e.getCause());
+		}
+		return retVal;
+	}
+
+	// Checks (2), (4) and (5) for txs[from..to), the outputs spent by each input already looked up.
+	// (2) only if checkSignatures
+	private static boolean areValidResolved(Transaction[] txs, Transaction.Output[][] resolved, int from, int to, SignatureCache signatureCache, boolean checkSignatures) {
+		for (int t = from;t < to;t++) {
+			Transaction tx = txs[t];
+			if (!isValidAllOutputSpendsNonNegative(tx)) {
+				return false;
+			}
+			double inputValue = 0.0;
+			for (int i = 0;i < tx.numInputs();i++) {
+				Transaction.Output out = resolved[t][i];
+				inputValue += out.value;
+				if (!checkSignatures) {
+					continue;
+				}
+				boolean signed = signatureCache != null
+						? signatureCache.verifySignature(tx, i, out.address)
+						: Crypto.verifySignature(out.address, tx.getRawDataToSign(i), tx.getInput(i).signature);
+				if (!signed) {
+					return false;
+				}
+			}
+			if (inputValue < getOutputSpends(tx)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Validates the transactions of a block, which must already be in a valid order, and applies
+	 * them to the pool if they are all valid.
+	 * 
+	 * <p>
+	 * Unlike {@code handleTxs} nothing is reordered or retried. One sequential pass checks that
+	 * every input is either in the pool or created by an earlier transaction of the block, and that
+	 * it is spent only once in the whole block. The signature and amount checks of all
+	 * transactions then run in parallel on {@code executor} (or inline if it is null).
+	 * 
+	 * @return true if all transactions are valid in this order; the pool is unchanged otherwise
+	 */
+	public boolean handleBlockTxs(Transaction[] txs, ExecutorService executor) {
+		return handleBlockTxs(txs, executor, true);
+	}
+
+	/**
+	 * Like {@code handleBlockTxs(txs, executor)}, but with {@code checkSignatures} false only the
+	 * outputs spent, double spends and amounts are checked, not who signed. For blocks known to be
+	 * valid otherwise, such as ancestors of an assume-valid block.
+	 */
+	public boolean handleBlockTxs(final Transaction[] txs, ExecutorService executor, final boolean checkSignatures) {
+		final Transaction.Output resolved[][] = new Transaction.Output[txs.length][];
+		Map<UTXO, Transaction.Output> created = new HashMap<UTXO, Transaction.Output>();
+		Set<UTXO> spentFromPool = new HashSet<UTXO>();
+
+		for (int t = 0;t < txs.length;t++) {
+			Transaction tx = txs[t];
+			resolved[t] = new Transaction.Output[tx.numInputs()];
+			for (int i = 0;i < tx.numInputs();i++) {
+				Transaction.Input in = tx.getInput(i);
+				UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+				Transaction.Output out = created.remove(utxo);
+				if (out == null && !spentFromPool.contains(utxo)) {
+					out = myUtxoPool.getTxOutput(utxo);
+					if (out != null) {
+						spentFromPool.add(utxo);
+					}
+				}
+				if (out == null) {
+					// System.err.println("Not valid due to missing in pool or double spend");
+					return false;
+				}
+				resolved[t][i] = out;
+			}
+			for (int i = 0;i < tx.numOutputs();i++) {
+				UTXO utxo = new UTXO(tx.getHash(), i);
+				if (myUtxoPool.contains(utxo) || created.put(utxo, tx.getOutput(i)) != null) {
+					// System.err.println("Not valid due to duplicate transaction");
+					return false;
+				}
+			}
+		}
+
+		if (executor == null || txs.length < 2) {
+			if (!areValidResolved(txs, resolved, 0, txs.length, signatureCache, checkSignatures)) {
+				return false;
+			}
+		} else {
+			int chunks = Math.min(txs.length, Runtime.getRuntime().availableProcessors() * 4);
+			int chunkSize = (txs.length + chunks - 1) / chunks;
+			List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+			for (int start = 0;start < txs.length;start += chunkSize) {
+				final int from = start;
+				final int to = Math.min(start + chunkSize, txs.length);
+				tasks.add(() -> areValidResolved(txs, resolved, from, to, signatureCache, checkSignatures));
+			}
+			for (boolean valid:invokeAll(executor, tasks)) {
+				if (!valid) {
+					return false;
+				}
+			}
+		}
+
+		for (UTXO utxo:spentFromPool) {
+			myUtxoPool.removeUTXO(utxo);
+		}
+		for (Map.Entry<UTXO, Transaction.Output> e:created.entrySet()) {
+			myUtxoPool.addUTXO(e.getKey(), e.getValue());
+		}
+		return true;
+	}
+
 	private void doTransaction(Transaction tx,UTXOPool UtxoPool) {
 		addOutputsToUTXOPool(tx, UtxoPool);
 		removeInputsFromUTX0Pool(tx, UtxoPool);
@@ -0,0 +1,85 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The change a block makes to the UTXO pool: the outputs it created and the outputs it spent,
+ * together with their values so the change can be undone. An output created and spent within the
+ * same block shows up in neither.
+ */
+public class UTXODiff {
+
+	private final Map<UTXO, Transaction.Output> created = new HashMap<UTXO, Transaction.Output>();
+	private final Map<UTXO, Transaction.Output> spent = new HashMap<UTXO, Transaction.Output>();
+
+	private UTXODiff() {
+	}
+
+	/** A diff read back from storage, {@code created} and {@code spent} as returned by the getters */
+	public UTXODiff(Map<UTXO, Transaction.Output> created, Map<UTXO, Transaction.Output> spent) {
+		this.created.putAll(created);
+		this.spent.putAll(spent);
+	}
+
+	/**
+	 * Builds the diff of applying {@code txs} (in this order) and then {@code coinbase} on top of
+	 * {@code parentPool}. Assumes the transactions are valid.
+	 */
+	public static UTXODiff of(Transaction txs[], Transaction coinbase, UTXOPool parentPool) {
+		UTXODiff diff = new UTXODiff();
+		for (Transaction tx:txs) {
+			for (Transaction.Input in:tx.getInputs()) {
+				UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+				if (diff.created.remove(utxo) == null) {
+					diff.spent.put(utxo, parentPool.getTxOutput(utxo));
+				}
+			}
+			diff.addOutputs(tx);
+		}
+		if (coinbase != null) {
+			diff.addOutputs(coinbase);
+		}
+		return diff;
+	}
+
+	private void addOutputs(Transaction tx) {
+		for (int i = 0;i < tx.numOutputs();i++) {
+			created.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+		}
+	}
+
+	/** Moves {@code pool} from the parent state to the state after the block */
+	public void applyTo(UTXOPool pool) {
+		for (UTXO utxo:spent.keySet()) {
+			pool.removeUTXO(utxo);
+		}
+		for (Map.Entry<UTXO, Transaction.Output> e:created.entrySet()) {
+			pool.addUTXO(e.getKey(), e.getValue());
+		}
+	}
+
+	/** Moves {@code pool} from the state after the block back to the parent state */
+	public void undoFrom(UTXOPool pool) {
+		for (UTXO utxo:created.keySet()) {
+			pool.removeUTXO(utxo);
+		}
+		for (Map.Entry<UTXO, Transaction.Output> e:spent.entrySet()) {
+			pool.addUTXO(e.getKey(), e.getValue());
+		}
+	}
+
+	/** @return the outputs this block created that were still unspent at its end */
+	public Map<UTXO, Transaction.Output> getCreated() {
+		return Collections.unmodifiableMap(created);
+	}
+
+	/** @return the outputs of earlier blocks this block spent */
+	public Map<UTXO, Transaction.Output> getSpent() {
+		return Collections.unmodifiableMap(spent);
+	}
+
+	/** @return number of UTXO entries held, a rough measure of the memory used */
+	public int size() {
+		return created.size() + spent.size();
+	}
+}
@@ -1,32 +1,155 @@
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private Map<UTXO, Transaction.Output> H;
+
+    /**
+     * The same UTXOs grouped by transaction hash, ordered by hash, with the output indices still in
+     * the pool as a bitmap. A transaction disappears from the index once all its outputs are spent.
+     */
+    private NavigableMap<ByteArrayWrapper, BitSet> byTx;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
         H = new HashMap<UTXO, Transaction.Output>();
+        byTx = new TreeMap<ByteArrayWrapper, BitSet>();
     }
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.copyOfMap();
+        byTx = uPool.copyOfIndex(H);
+    }
+
+    /** Creates a UTXOPool backed by {@code h} and {@code index}, for subclasses that need other maps */
+    protected UTXOPool(Map<UTXO, Transaction.Output> h, NavigableMap<ByteArrayWrapper, BitSet> index) {
+        H = h;
+        byTx = index;
+    }
+
+    /** @return a private copy of the UTXO to output mappings, used by the copy constructor */
+    protected HashMap<UTXO, Transaction.Output> copyOfMap() {
+        return new HashMap<UTXO, Transaction.Output>(H);
+    }
+
+    /**
+     * @return a private copy of the per transaction index matching {@code copiedMap}, the result
+     *         of {@code copyOfMap()}, used by the copy constructor
+     */
+    protected NavigableMap<ByteArrayWrapper, BitSet> copyOfIndex(Map<UTXO, Transaction.Output> copiedMap) {
+        TreeMap<ByteArrayWrapper, BitSet> index = new TreeMap<ByteArrayWrapper, BitSet>();
+        for (Map.Entry<ByteArrayWrapper, BitSet> e : byTx.entrySet()) {
+            index.put(e.getKey(), (BitSet) e.getValue().clone());
+        }
+        return index;
+    }
+
+    /** @return a fresh per transaction index of {@code utxos} */
+    protected static NavigableMap<ByteArrayWrapper, BitSet> buildIndex(Iterable<UTXO> utxos) {
+        TreeMap<ByteArrayWrapper, BitSet> index = new TreeMap<ByteArrayWrapper, BitSet>();
+        for (UTXO utxo : utxos)
+            indexAdd(index, utxo);
+        return index;
+    }
+
+    /** Adds {@code utxo} to the per transaction index, call after adding it to the map */
+    protected void indexAdd(UTXO utxo) {
+        indexAdd(byTx, utxo);
+    }
+
+    private static void indexAdd(NavigableMap<ByteArrayWrapper, BitSet> byTx, UTXO utxo) {
+        if (utxo.getIndex() < 0)
+            return;
+        ByteArrayWrapper key = new ByteArrayWrapper(utxo.getTxHash());
+        BitSet bits = byTx.get(key);
+        if (bits == null) {
+            bits = new BitSet();
+            byTx.put(key, bits);
+        }
+        bits.set(utxo.getIndex());
+    }
+
+    /** Removes {@code utxo} from the per transaction index, call after removing it from the map */
+    protected void indexRemove(UTXO utxo) {
+        if (utxo.getIndex() < 0)
+            return;
+        ByteArrayWrapper key = new ByteArrayWrapper(utxo.getTxHash());
+        BitSet bits = byTx.get(key);
+        if (bits != null) {
+            bits.clear(utxo.getIndex());
+            if (bits.isEmpty())
+                byTx.remove(key);
+        }
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
         H.put(utxo, txOut);
+        indexAdd(utxo);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (H.containsKey(utxo)) {
+            H.remove(utxo);
+            indexRemove(utxo);
+        }
+    }
+
+    /** @return the UTXOs of the transaction with hash {@code txHash} still in the pool, by index */
+    public ArrayList<UTXO> getUTXOsOfTx(byte[] txHash) {
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+        BitSet bits = byTx.get(new ByteArrayWrapper(txHash));
+        if (bits != null) {
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+                utxos.add(new UTXO(txHash, i));
+        }
+        return utxos;
+    }
+
+    /** @return the number of outputs of the transaction with hash {@code txHash} still unspent */
+    public int countUTXOsOfTx(byte[] txHash) {
+        BitSet bits = byTx.get(new ByteArrayWrapper(txHash));
+        return bits == null ? 0 : bits.cardinality();
+    }
+
+    /**
+     * Removes all remaining outputs of the transaction with hash {@code txHash} from the pool
+     * 
+     * @return the number of UTXOs removed
+     */
+    public int removeTx(byte[] txHash) {
+        ArrayList<UTXO> utxos = getUTXOsOfTx(txHash);
+        for (UTXO ut : utxos)
+            removeUTXO(ut);
+        return utxos.size();
+    }
+
+    /** Returns an {@code ArrayList} of all UTXOs in the pool, grouped by tx hash and ordered by (hash, index) */
+    public ArrayList<UTXO> getAllUTXOSorted() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        for (Map.Entry<ByteArrayWrapper, BitSet> e : byTx.entrySet()) {
+            byte[] txHash = e.getKey().getContents();
+            BitSet bits = e.getValue();
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+                allUTXO.add(new UTXO(txHash, i));
+        }
+        return allUTXO;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
     }
 
     /**